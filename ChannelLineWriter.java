@@ -0,0 +1,178 @@
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.Flushable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Encodes text into a channel through one large buffer, so a diagram is
+ * written in a few big writes instead of one synchronized, flushing
+ * System.out call per line. Not thread safe; nothing reaches the channel
+ * until the buffer fills or flush() is called.
+ */
+class ChannelLineWriter implements LineSink, Appendable, Flushable, Closeable
+{
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final String NEWLINE = System.lineSeparator();
+
+    private static ChannelLineWriter stdout;
+
+    private final WritableByteChannel channel;
+    private final boolean closeChannel;
+    private final CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder()
+                                               .onMalformedInput(CodingErrorAction.REPLACE)
+                                               .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    private final CharBuffer chars = CharBuffer.allocate(BUFFER_SIZE);
+    private final ByteBuffer bytes = ByteBuffer.allocateDirect(BUFFER_SIZE * 2);
+
+    /** With closeChannel unset, close() only flushes and leaves the channel open. */
+    ChannelLineWriter(WritableByteChannel channel, boolean closeChannel)
+    {
+        this.channel = channel;
+        this.closeChannel = closeChannel;
+    }
+
+    /** Opens, or replaces, the file and writes to it through a FileChannel. */
+    static ChannelLineWriter toFile(File file) throws IOException
+    {
+        FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                                               StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+        return new ChannelLineWriter(channel, true);
+    }
+
+    /**
+     * A writer on the process's standard output, shared by everything
+     * that prints bulk output. It bypasses System.out, so callers flush
+     * it before printing anything there.
+     */
+    static synchronized ChannelLineWriter stdout()
+    {
+        if (stdout == null)
+        {
+            stdout = new ChannelLineWriter(Channels.newChannel(new FileOutputStream(FileDescriptor.out)), false);
+        }
+        return stdout;
+    }
+
+    @Override
+    public void line(String line) throws IOException
+    {
+        append(line);
+        append(NEWLINE);
+    }
+
+    @Override
+    public ChannelLineWriter append(CharSequence text) throws IOException
+    {
+        return append(text, 0, text.length());
+    }
+
+    @Override
+    public ChannelLineWriter append(CharSequence text, int start, int end) throws IOException
+    {
+        while (start < end)
+        {
+            int n = Math.min(chars.remaining(), end - start);
+            if (text instanceof String)
+            {
+                chars.put((String) text, start, start + n);
+            }
+            else
+            {
+                for (int i = start; i < start + n; i++)
+                {
+                    chars.put(text.charAt(i));
+                }
+            }
+            start += n;
+
+            if (!chars.hasRemaining())
+            {
+                encode(false);
+            }
+        }
+        return this;
+    }
+
+    @Override
+    public ChannelLineWriter append(char c) throws IOException
+    {
+        chars.put(c);
+        if (!chars.hasRemaining())
+        {
+            encode(false);
+        }
+        return this;
+    }
+
+    @Override
+    public void flush() throws IOException
+    {
+        encode(false);
+        drain();
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        try
+        {
+            encode(true);
+            while (encoder.flush(bytes) == CoderResult.OVERFLOW)
+            {
+                drain();
+            }
+            drain();
+            encoder.reset();
+
+        } finally
+        {
+            if (closeChannel)
+            {
+                channel.close();
+            }
+        }
+    }
+
+    /** Encodes the buffered chars; a trailing high surrogate waits for its pair unless endOfInput. */
+    private void encode(boolean endOfInput) throws IOException
+    {
+        chars.flip();
+        while (true)
+        {
+            CoderResult result = encoder.encode(chars, bytes, endOfInput);
+            if (result.isOverflow())
+            {
+                drain();
+            }
+            else
+            {
+                break;
+            }
+        }
+        chars.compact();
+    }
+
+    private void drain() throws IOException
+    {
+        bytes.flip();
+        // everything written through here is a diagram, dump or index, so its first byte is the first output
+        if (bytes.hasRemaining()) ToolMetrics.INSTANCE.firstOutput();
+        while (bytes.hasRemaining())
+        {
+            channel.write(bytes);
+        }
+        bytes.clear();
+    }
+}
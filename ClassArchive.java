@@ -0,0 +1,105 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
+
+/**
+ * A jar or a directory of class files. Entries are named as in a jar,
+ * e.g. "com/acme/Sensor.class", and remember the archive they came from.
+ */
+interface ClassArchive extends AutoCloseable
+{
+    List<JarArchive.Entry> entries();
+
+    JarArchive.Entry getEntry(String name);
+
+    /** Returns the uncompressed content of the entry, positioned at zero. */
+    ByteBuffer read(JarArchive.Entry entry) throws IOException;
+
+    /** Hands back a buffer from read() that nothing will read again, so it can be reused. */
+    default void release(ByteBuffer buf)
+    {
+    }
+
+    @Override
+    void close() throws IOException;
+
+    static ClassArchive open(File file) throws IOException
+    {
+        return open(file, true);
+    }
+
+    /** With mapped unset a jar is read through its channel, holding nothing of it once closed. */
+    static ClassArchive open(File file, boolean mapped) throws IOException
+    {
+        return file.isDirectory() ? new DirectoryArchive(file) : new JarArchive(file, mapped);
+    }
+}
+
+/**
+ * A class directory, as found on a classpath. There is no stored CRC, so
+ * entries carry the file's modification time in its place, which keeps
+ * extraction cache keys changing whenever the file does. The stamp a
+ * diff compares is not this time but a CRC-32 the extractor works out
+ * from the bytes.
+ */
+class DirectoryArchive implements ClassArchive
+{
+    private final Path root;
+    private final List<JarArchive.Entry> entries = new ArrayList<>();
+    private final Map<String, JarArchive.Entry> byName = new HashMap<>();
+
+    DirectoryArchive(File dir) throws IOException
+    {
+        root = dir.toPath();
+
+        List<Path> files = new ArrayList<>();
+        try (Stream<Path> walk = Files.walk(root))
+        {
+            walk.filter(Files::isRegularFile).forEach(files::add);
+        }
+        Collections.sort(files);
+
+        for (Path file : files)
+        {
+            String name = root.relativize(file).toString().replace(File.separatorChar, '/');
+            long size = Files.size(file);
+            long stamp = Files.getLastModifiedTime(file).toMillis() & 0xFFFFFFFFL;
+
+            JarArchive.Entry entry = new JarArchive.Entry(this, name, 0, stamp, size, size, 0);
+            entries.add(entry);
+            byName.put(name, entry);
+        }
+    }
+
+    @Override
+    public List<JarArchive.Entry> entries()
+    {
+        return Collections.unmodifiableList(entries);
+    }
+
+    @Override
+    public JarArchive.Entry getEntry(String name)
+    {
+        return byName.get(name);
+    }
+
+    @Override
+    public ByteBuffer read(JarArchive.Entry entry) throws IOException
+    {
+        ToolMetrics.INSTANCE.bytesRead.add(entry.size);
+        return ByteBuffer.wrap(Files.readAllBytes(root.resolve(entry.name)));
+    }
+
+    @Override
+    public void close()
+    {
+    }
+}
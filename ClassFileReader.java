@@ -0,0 +1,656 @@
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Reads a single class straight from its class-file bytes, without
+ * defining it in a ClassLoader. The resulting ClassModel has the same
+ * content as the one JarInfoExtractor builds through reflection.
+ *
+ * Read lazily, the model keeps this reader as its MemberLoader and each
+ * member section is parsed from the retained bytes when first asked for.
+ */
+class ClassFileReader implements ClassModel.MemberLoader
+{
+    private static final int ACC_INTERFACE = 0x0200;
+    private static final int ACC_ANNOTATION = 0x2000;
+    private static final int ACC_MODULE = 0x8000;
+
+    private final ByteBuffer buf;
+    private final TypeNames names;
+    private int[] cpOffsets;
+    private String[] cpStrings;
+
+    private int access;
+    private String thisName;
+    private String superName;
+    private String[] interfaceNames;
+    private String simpleName;
+    private int membersStart;
+
+    ClassFileReader(ByteBuffer buf, TypeNames names)
+    {
+        this.buf = buf.slice();
+        this.names = names;
+    }
+
+    /** Returns the class, or null if the bytes describe a module-info. */
+    ClassModel read()
+    {
+        return read(ClassFilter.NONE, true, true);
+    }
+
+    /**
+     * Returns the class, or null if it is a module-info or excluded by
+     * filter. Fields are only read if withFields is set, methods other
+     * than constructors only if withMethods is set.
+     */
+    ClassModel read(ClassFilter filter, boolean withFields, boolean withMethods)
+    {
+        return read(filter, withFields, withMethods, false);
+    }
+
+    /**
+     * As read(filter, withFields, withMethods), but with lazy set only the
+     * header is parsed now and the wanted member sections are deferred to
+     * this reader, which then holds on to the class bytes.
+     */
+    ClassModel read(ClassFilter filter, boolean withFields, boolean withMethods, boolean lazy)
+    {
+        if (buf.getInt(0) != 0xCAFEBABE)
+        {
+            throw new IllegalArgumentException("Not a class file");
+        }
+
+        buf.position(8);
+        readConstantPool();
+
+        access = buf.getShort() & 0xFFFF;
+        if ((access & ACC_MODULE) != 0) return null;
+
+        thisName = className(buf.getShort() & 0xFFFF);
+        int kind = (access & ACC_ANNOTATION) != 0 ? ClassModel.ANNOTATION
+                 : (access & ACC_INTERFACE) != 0 ? ClassModel.INTERFACE
+                 : ClassModel.CLASS;
+        if (filter.excludes(kind, thisName)) return null;
+
+        int superIndex = buf.getShort() & 0xFFFF;
+        superName = superIndex == 0 ? null : className(superIndex);
+
+        interfaceNames = new String[buf.getShort() & 0xFFFF];
+        for (int i = 0; i < interfaceNames.length; i++)
+        {
+            interfaceNames[i] = className(buf.getShort() & 0xFFFF);
+        }
+
+        membersStart = buf.position();
+
+        ClassModel cls = new ClassModel(kind, thisName);
+
+        if (superName != null && (access & ACC_INTERFACE) == 0)
+        {
+            cls.superName = superName;
+        }
+        cls.interfaces = interfaceNames;
+
+        int sections = ClassModel.CONSTRUCTORS | (withFields ? ClassModel.FIELDS : 0)
+                       | (withMethods ? ClassModel.METHODS : 0);
+        if (lazy)
+        {
+            cls.deferMembers(sections, this);
+            return cls;
+        }
+
+        load(cls, sections);
+        return cls;
+    }
+
+    /** Parses the member sections in the sections mask into cls, whose header this reader read. */
+    @Override
+    public void load(ClassModel cls, int sections)
+    {
+        if (sections == 0) return;
+
+        ToolMetrics.INSTANCE.memberSectionsRead.add(Integer.bitCount(sections));
+
+        String constructorName = (sections & ClassModel.CONSTRUCTORS) != 0 ? constructorName() : null;
+
+        buf.position(membersStart);
+        if ((sections & ClassModel.FIELDS) != 0)
+        {
+            readFields(cls);
+        }
+        else
+        {
+            skipMembers();
+        }
+
+        if ((sections & (ClassModel.CONSTRUCTORS | ClassModel.METHODS)) != 0)
+        {
+            readMethods(cls, constructorName, (sections & ClassModel.METHODS) != 0);
+        }
+    }
+
+    /** Counts the members of one section from the class file, without building them. */
+    @Override
+    public int count(ClassModel cls, int section)
+    {
+        buf.position(membersStart);
+        if (section == ClassModel.FIELDS)
+        {
+            return buf.getShort(buf.position()) & 0xFFFF;
+        }
+        skipMembers();
+
+        int count = buf.getShort() & 0xFFFF;
+        int found = 0;
+        for (int i = 0; i < count; i++)
+        {
+            buf.getShort();
+            String name = utf8(buf.getShort() & 0xFFFF);
+            buf.getShort();
+            skipAttributes();
+
+            if (name.equals("<clinit>")) continue;
+            if (name.equals("<init>") == (section == ClassModel.CONSTRUCTORS)) found++;
+        }
+        return found;
+    }
+
+    /**
+     * The simple name constructors are shown with. Fields and methods
+     * come before the class attributes, so the InnerClasses attribute it
+     * comes from is only found by skipping over them.
+     */
+    private String constructorName()
+    {
+        if (simpleName == null)
+        {
+            buf.position(membersStart);
+            skipMembers();
+            skipMembers();
+            readClassAttributes();
+        }
+        return simpleName;
+    }
+
+    /** Returns the ClassModel kind from the header alone, or -1 for a module-info. */
+    int readKind()
+    {
+        if (buf.getInt(0) != 0xCAFEBABE)
+        {
+            throw new IllegalArgumentException("Not a class file");
+        }
+
+        buf.position(8);
+        readConstantPool();
+
+        access = buf.getShort() & 0xFFFF;
+        return (access & ACC_MODULE) != 0 ? -1
+             : (access & ACC_ANNOTATION) != 0 ? ClassModel.ANNOTATION
+             : (access & ACC_INTERFACE) != 0 ? ClassModel.INTERFACE
+             : ClassModel.CLASS;
+    }
+
+    /**
+     * Maps each method, constructors included, to its place in the class
+     * file. The key is the name followed by the descriptor, e.g.
+     * "<init>(Ljava/lang/String;)V".
+     */
+    Map<String, Integer> methodOrder()
+    {
+        if (buf.getInt(0) != 0xCAFEBABE)
+        {
+            throw new IllegalArgumentException("Not a class file");
+        }
+
+        buf.position(8);
+        readConstantPool();
+
+        // access flags, this and super class, then the interface list
+        buf.position(buf.position() + 6);
+        int interfaces = buf.getShort() & 0xFFFF;
+        buf.position(buf.position() + 2 * interfaces);
+        skipMembers();
+
+        int count = buf.getShort() & 0xFFFF;
+        Map<String, Integer> order = new HashMap<>(count * 2);
+        for (int i = 0; i < count; i++)
+        {
+            buf.getShort();
+            String name = utf8(buf.getShort() & 0xFFFF);
+            String descriptor = utf8(buf.getShort() & 0xFFFF);
+            skipAttributes();
+            order.put(name + descriptor, i);
+        }
+        return order;
+    }
+
+    private void readConstantPool()
+    {
+        int count = buf.getShort() & 0xFFFF;
+        cpOffsets = new int[count];
+        cpStrings = new String[count];
+
+        for (int i = 1; i < count; i++)
+        {
+            int tag = buf.get() & 0xFF;
+            cpOffsets[i] = buf.position();
+
+            switch (tag)
+            {
+                case 1: // Utf8
+                    buf.position(buf.position() + 2 + (buf.getShort() & 0xFFFF));
+                    break;
+                case 7: case 8: case 16: case 19: case 20: // Class, String, MethodType, Module, Package
+                    buf.position(buf.position() + 2);
+                    break;
+                case 15: // MethodHandle
+                    buf.position(buf.position() + 3);
+                    break;
+                case 3: case 4: case 9: case 10: case 11: case 12: case 17: case 18:
+                    buf.position(buf.position() + 4);
+                    break;
+                case 5: case 6: // Long and Double take two slots
+                    buf.position(buf.position() + 8);
+                    i++;
+                    break;
+                default:
+                    throw new IllegalArgumentException("Bad constant pool tag " + tag);
+            }
+        }
+    }
+
+    private String utf8(int index)
+    {
+        String s = cpStrings[index];
+        if (s != null) return s;
+
+        int pos = cpOffsets[index];
+        int len = buf.getShort(pos) & 0xFFFF;
+        pos += 2;
+        int end = pos + len;
+
+        // modified UTF-8, as written by DataOutput.writeUTF
+        char[] chars = new char[len];
+        int n = 0;
+        while (pos < end)
+        {
+            int c = buf.get(pos++) & 0xFF;
+            if (c < 0x80)
+            {
+                chars[n++] = (char) c;
+            }
+            else if ((c & 0xE0) == 0xC0)
+            {
+                chars[n++] = (char) (((c & 0x1F) << 6) | (buf.get(pos++) & 0x3F));
+            }
+            else
+            {
+                int c2 = buf.get(pos++) & 0x3F;
+                int c3 = buf.get(pos++) & 0x3F;
+                chars[n++] = (char) (((c & 0x0F) << 12) | (c2 << 6) | c3);
+            }
+        }
+
+        s = new String(chars, 0, n);
+        cpStrings[index] = s;
+        return s;
+    }
+
+    private String className(int index)
+    {
+        return names.intern(utf8(buf.getShort(cpOffsets[index]) & 0xFFFF).replace('/', '.'));
+    }
+
+    private void skipMembers()
+    {
+        int count = buf.getShort() & 0xFFFF;
+        for (int i = 0; i < count; i++)
+        {
+            buf.position(buf.position() + 6);
+            skipAttributes();
+        }
+    }
+
+    private void skipAttributes()
+    {
+        int count = buf.getShort() & 0xFFFF;
+        for (int i = 0; i < count; i++)
+        {
+            buf.position(buf.position() + 2);
+            buf.position(buf.position() + 4 + buf.getInt());
+        }
+    }
+
+    private void readClassAttributes()
+    {
+        int count = buf.getShort() & 0xFFFF;
+        for (int i = 0; i < count; i++)
+        {
+            String attrName = utf8(buf.getShort() & 0xFFFF);
+            int len = buf.getInt();
+            int next = buf.position() + len;
+
+            if (attrName.equals("InnerClasses"))
+            {
+                int classes = buf.getShort() & 0xFFFF;
+                for (int j = 0; j < classes; j++)
+                {
+                    int inner = buf.getShort() & 0xFFFF;
+                    buf.getShort();
+                    int innerName = buf.getShort() & 0xFFFF;
+                    buf.getShort();
+
+                    if (inner != 0 && className(inner).equals(thisName))
+                    {
+                        // anonymous classes have no simple name, same as Class.getSimpleName()
+                        simpleName = innerName == 0 ? "" : utf8(innerName);
+                    }
+                }
+            }
+            buf.position(next);
+        }
+
+        if (simpleName == null)
+        {
+            // not listed as an inner class, so this is a top-level class
+            simpleName = thisName.substring(thisName.lastIndexOf('.') + 1);
+        }
+    }
+
+    /** Returns the Signature attribute of the member whose attributes start at the buffer position. */
+    private String memberSignature()
+    {
+        String signature = null;
+        int count = buf.getShort() & 0xFFFF;
+        for (int i = 0; i < count; i++)
+        {
+            String attrName = utf8(buf.getShort() & 0xFFFF);
+            int len = buf.getInt();
+            int next = buf.position() + len;
+
+            if (attrName.equals("Signature"))
+            {
+                signature = utf8(buf.getShort() & 0xFFFF);
+            }
+            buf.position(next);
+        }
+        return signature;
+    }
+
+    private void readFields(ClassModel cls)
+    {
+        int count = buf.getShort() & 0xFFFF;
+
+        for (int i = 0; i < count; i++)
+        {
+            int flags = buf.getShort() & 0xFFFF;
+            String name = utf8(buf.getShort() & 0xFFFF);
+            String descriptor = utf8(buf.getShort() & 0xFFFF);
+            String signature = memberSignature();
+
+            String typeName;
+            if (signature != null)
+            {
+                StringBuilder sb = new StringBuilder();
+                new SignatureParser(signature).typeName(sb);
+                typeName = sb.toString();
+            }
+            else
+            {
+                typeName = descriptorTypeName(descriptor, 0, descriptor.length());
+            }
+
+            // matches the reflective path, which keeps what follows the last '.'
+            typeName = typeName.substring(typeName.lastIndexOf('.') + 1);
+
+            cls.fields.add(new MemberModel(flags, names.intern(typeName), name, null));
+        }
+    }
+
+    /** Reads constructors if constructorName is given, other methods if withMethods is set. */
+    private void readMethods(ClassModel cls, String constructorName, boolean withMethods)
+    {
+        int count = buf.getShort() & 0xFFFF;
+
+        for (int i = 0; i < count; i++)
+        {
+            int flags = buf.getShort() & 0xFFFF;
+            String name = utf8(buf.getShort() & 0xFFFF);
+            String descriptor = utf8(buf.getShort() & 0xFFFF);
+            skipAttributes();
+
+            if (name.equals("<clinit>")) continue;
+
+            boolean constructor = name.equals("<init>");
+            if (constructor ? constructorName == null : !withMethods) continue;
+
+            TypeNames.MethodType methodType = names.methodType(descriptor, this::parseMethodType);
+
+            if (constructor)
+            {
+                cls.constructors.add(new MemberModel(flags, null, constructorName, methodType.params));
+            }
+            else
+            {
+                cls.methods.add(new MemberModel(flags, methodType.returnType, name, methodType.params));
+            }
+        }
+    }
+
+    private TypeNames.MethodType parseMethodType(String descriptor)
+    {
+        int close = descriptor.indexOf(')');
+        List<String> params = new ArrayList<>();
+        int pos = 1;
+        while (pos < close)
+        {
+            int end = descriptorEnd(descriptor, pos);
+            params.add(names.intern(simpleTypeName(descriptor, pos, end)));
+            pos = end;
+        }
+        String returnType = names.intern(simpleTypeName(descriptor, close + 1, descriptor.length()));
+        return new TypeNames.MethodType(returnType, params.toArray(ClassModel.NO_NAMES));
+    }
+
+    private static int descriptorEnd(String descriptor, int pos)
+    {
+        while (descriptor.charAt(pos) == '[') pos++;
+        if (descriptor.charAt(pos) == 'L')
+        {
+            return descriptor.indexOf(';', pos) + 1;
+        }
+        return pos + 1;
+    }
+
+    private static String primitiveName(char c)
+    {
+        switch (c)
+        {
+            case 'B': return "byte";
+            case 'C': return "char";
+            case 'D': return "double";
+            case 'F': return "float";
+            case 'I': return "int";
+            case 'J': return "long";
+            case 'S': return "short";
+            case 'Z': return "boolean";
+            case 'V': return "void";
+            default:
+                throw new IllegalArgumentException("Bad descriptor " + c);
+        }
+    }
+
+    /** Same as Class.getTypeName() for the type described by descriptor[start, end). */
+    private static String descriptorTypeName(String descriptor, int start, int end)
+    {
+        int dims = 0;
+        while (descriptor.charAt(start + dims) == '[') dims++;
+
+        String base;
+        if (descriptor.charAt(start + dims) == 'L')
+        {
+            base = descriptor.substring(start + dims + 1, end - 1).replace('/', '.');
+        }
+        else
+        {
+            base = primitiveName(descriptor.charAt(start + dims));
+        }
+        return dims == 0 ? base : base + "[]".repeat(dims);
+    }
+
+    /** Same as Class.getSimpleName() for the type described by descriptor[start, end). */
+    private static String simpleTypeName(String descriptor, int start, int end)
+    {
+        int dims = 0;
+        while (descriptor.charAt(start + dims) == '[') dims++;
+
+        String base;
+        if (descriptor.charAt(start + dims) == 'L')
+        {
+            base = simpleName(descriptor.substring(start + dims + 1, end - 1).replace('/', '.'));
+        }
+        else
+        {
+            base = primitiveName(descriptor.charAt(start + dims));
+        }
+        return dims == 0 ? base : base + "[]".repeat(dims);
+    }
+
+    /**
+     * Approximates Class.getSimpleName() from a binary name when the
+     * InnerClasses attribute of the type itself is not at hand.
+     */
+    static String simpleName(String binaryName)
+    {
+        String name = binaryName.substring(binaryName.lastIndexOf('.') + 1);
+        int dollar = name.lastIndexOf('$');
+        if (dollar >= 0 && dollar < name.length() - 1)
+        {
+            name = name.substring(dollar + 1);
+            int i = 0;
+            while (i < name.length() && Character.isDigit(name.charAt(i))) i++;
+            name = name.substring(i);
+        }
+        return name;
+    }
+
+    /**
+     * Renders a field type signature the way the reflective
+     * Type.getTypeName() does.
+     */
+    private static class SignatureParser
+    {
+        private final String sig;
+        private int pos;
+
+        SignatureParser(String sig)
+        {
+            this.sig = sig;
+        }
+
+        void typeName(StringBuilder sb)
+        {
+            char c = sig.charAt(pos);
+            if (c == '[')
+            {
+                pos++;
+                typeName(sb);
+                sb.append("[]");
+            }
+            else if (c == 'T')
+            {
+                int end = sig.indexOf(';', pos);
+                sb.append(sig, pos + 1, end);
+                pos = end + 1;
+            }
+            else if (c == 'L')
+            {
+                pos++;
+                classTypeName(sb);
+            }
+            else
+            {
+                sb.append(primitiveName(c));
+                pos++;
+            }
+        }
+
+        private void classTypeName(StringBuilder sb)
+        {
+            int start = pos;
+            while (sig.charAt(pos) != '<' && sig.charAt(pos) != '.' && sig.charAt(pos) != ';') pos++;
+            sb.append(sig.substring(start, pos).replace('/', '.'));
+
+            while (true)
+            {
+                char c = sig.charAt(pos);
+                if (c == '<')
+                {
+                    pos++;
+                    sb.append('<');
+                    boolean first = true;
+                    while (sig.charAt(pos) != '>')
+                    {
+                        if (!first) sb.append(", ");
+                        first = false;
+                        typeArgument(sb);
+                    }
+                    pos++;
+                    sb.append('>');
+                }
+                else if (c == '.')
+                {
+                    // inner class of a parameterized owner
+                    pos++;
+                    start = pos;
+                    while (sig.charAt(pos) != '<' && sig.charAt(pos) != '.' && sig.charAt(pos) != ';') pos++;
+                    sb.append('$').append(sig, start, pos);
+                }
+                else
+                {
+                    pos++;
+                    return;
+                }
+            }
+        }
+
+        private void typeArgument(StringBuilder sb)
+        {
+            char c = sig.charAt(pos);
+            if (c == '*')
+            {
+                pos++;
+                sb.append('?');
+            }
+            else if (c == '+')
+            {
+                pos++;
+                int mark = sb.length();
+                typeName(sb);
+                if (sb.substring(mark).equals("java.lang.Object"))
+                {
+                    sb.setLength(mark);
+                    sb.append('?');
+                }
+                else
+                {
+                    sb.insert(mark, "? extends ");
+                }
+            }
+            else if (c == '-')
+            {
+                pos++;
+                sb.append("? super ");
+                typeName(sb);
+            }
+            else
+            {
+                typeName(sb);
+            }
+        }
+    }
+}
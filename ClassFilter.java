@@ -0,0 +1,195 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+/**
+ * Decides which classes the preprocessor drops. Entries are compiled once
+ * so each class is checked in time independent of the list length:
+ *
+ *   TextDisplay         simple name, a hash set lookup
+ *   com.acme.Sensor     fully qualified name, a hash set lookup
+ *   com.acme.gen.**     the package and everything below it, a walk
+ *                       down a trie of package segments
+ *   com.acme.*Impl      glob, * within one segment, ** across segments
+ *   regex:.*\$Builder   regular expression on the full name
+ *
+ * Globs and regexes are joined into a single pattern, so a class is
+ * matched against all of them in one pass.
+ *
+ * Simple names only match classes, as the old ignore list did, so an
+ * interface sharing the name is still drawn. The other forms match
+ * interfaces and annotations too.
+ */
+class ClassFilter
+{
+    static final ClassFilter NONE = new ClassFilter(new ArrayList<>());
+
+    private final Set<String> simpleNames = new HashSet<>();
+    private final Set<String> fullNames = new HashSet<>();
+    private final PackageNode packages = new PackageNode();
+    private final Pattern patterns;
+
+    private static class PackageNode
+    {
+        Map<String, PackageNode> children;
+        boolean terminal;
+
+        PackageNode child(String segment)
+        {
+            if (children == null) children = new HashMap<>();
+            return children.computeIfAbsent(segment, s -> new PackageNode());
+        }
+    }
+
+    ClassFilter(List<String> entries)
+    {
+        StringBuilder combined = new StringBuilder();
+
+        for (String entry : entries)
+        {
+            entry = entry.trim();
+            if (entry.isEmpty()) continue;
+
+            String regex = null;
+            if (entry.startsWith("regex:"))
+            {
+                regex = entry.substring(6);
+            }
+            else if (entry.endsWith(".**") && !hasWildcard(entry.substring(0, entry.length() - 3)))
+            {
+                addPackage(entry.substring(0, entry.length() - 3));
+            }
+            else if (hasWildcard(entry))
+            {
+                regex = globToRegex(entry);
+            }
+            else if (entry.indexOf('.') >= 0)
+            {
+                fullNames.add(entry);
+            }
+            else
+            {
+                simpleNames.add(entry);
+            }
+
+            if (regex != null)
+            {
+                // validate each one alone so a bad entry is reported by itself
+                Pattern.compile(regex);
+                if (combined.length() > 0) combined.append('|');
+                combined.append("(?:").append(regex).append(')');
+            }
+        }
+
+        patterns = combined.length() > 0 ? Pattern.compile(combined.toString()) : null;
+    }
+
+    boolean isEmpty()
+    {
+        return simpleNames.isEmpty() && fullNames.isEmpty() && packages.children == null && patterns == null;
+    }
+
+    /** Returns true if the class should be left out of the diagram. */
+    boolean excludes(ClassModel cls)
+    {
+        return excludes(cls.kind, cls.name);
+    }
+
+    boolean excludes(int kind, String name)
+    {
+        if (kind == ClassModel.CLASS && !simpleNames.isEmpty()
+            && simpleNames.contains(name.substring(name.lastIndexOf('.') + 1)))
+        {
+            return true;
+        }
+
+        return excludesName(name);
+    }
+
+    /**
+     * The entries that can be decided from the name alone, so the
+     * extractor can skip a class before reading any of its bytes.
+     */
+    boolean excludesName(String name)
+    {
+        if (fullNames.contains(name) || inPackage(name))
+        {
+            return true;
+        }
+
+        return patterns != null && patterns.matcher(name).matches();
+    }
+
+    /**
+     * True if a simple-name entry matches the class, so whether it is left
+     * out depends on it being a class rather than an interface. Only then
+     * does the extractor need to read the class-file header first.
+     */
+    boolean mayExcludeByKind(String name)
+    {
+        return !simpleNames.isEmpty() && simpleNames.contains(name.substring(name.lastIndexOf('.') + 1));
+    }
+
+    private void addPackage(String packageName)
+    {
+        PackageNode node = packages;
+        for (String segment : packageName.split("\\."))
+        {
+            node = node.child(segment);
+        }
+        node.terminal = true;
+    }
+
+    private boolean inPackage(String name)
+    {
+        PackageNode node = packages;
+        int start = 0;
+        int dot;
+
+        while (node.children != null && (dot = name.indexOf('.', start)) >= 0)
+        {
+            node = node.children.get(name.substring(start, dot));
+            if (node == null) return false;
+            if (node.terminal) return true;
+            start = dot + 1;
+        }
+        return false;
+    }
+
+    private static boolean hasWildcard(String entry)
+    {
+        return entry.indexOf('*') >= 0 || entry.indexOf('?') >= 0;
+    }
+
+    private static String globToRegex(String glob)
+    {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < glob.length(); i++)
+        {
+            char c = glob.charAt(i);
+            if (c == '*' && i + 1 < glob.length() && glob.charAt(i + 1) == '*')
+            {
+                sb.append(".*");
+                i++;
+            }
+            else if (c == '*')
+            {
+                sb.append("[^.]*");
+            }
+            else if (c == '?')
+            {
+                sb.append("[^.]");
+            }
+            else
+            {
+                if (!Character.isLetterOrDigit(c)) sb.append('\\');
+                sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,593 @@
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+/**
+ * One extracted class. The extractor builds these once and the
+ * preprocessor and formatters read them directly, instead of each stage
+ * re-parsing the prefixed text records.
+ *
+ * The header is always there, but the extractor may leave member sections
+ * to a MemberLoader, so a diagram that never shows fields or methods never
+ * pays for them. Readers go through fields(), constructors() and
+ * methods(); the lists themselves are only for the code that fills them.
+ */
+class ClassModel
+{
+    static final int CLASS = 0;
+    static final int INTERFACE = 1;
+    static final int ANNOTATION = 2;
+
+    static final int FIELDS = 1;
+    static final int CONSTRUCTORS = 2;
+    static final int METHODS = 4;
+
+    static final String[] NO_NAMES = new String[0];
+
+    /** Fills in one member section of a class that was extracted without it. */
+    interface MemberLoader
+    {
+        void load(ClassModel cls, int section);
+
+        /** How many members load() would add to the section, or -1 if only loading it tells. */
+        default int count(ClassModel cls, int section)
+        {
+            return -1;
+        }
+    }
+
+    int kind;
+    String name;
+    String superName;
+    String[] interfaces = NO_NAMES;
+
+    List<MemberModel> fields = new ArrayList<>();
+    List<MemberModel> constructors = new ArrayList<>();
+    List<MemberModel> methods = new ArrayList<>();
+
+    /** How a diff diagram marks the class, "added", "removed" or "modified", or "package" for a collapsed package; null elsewhere. */
+    String mark;
+
+    /**
+     * CRC-32 and size of the class file, as stored in its jar or worked
+     * out from the bytes of one read from a directory. 0 when not known:
+     * a directory class the extraction cache served was never read.
+     */
+    long stamp;
+
+    private volatile int pending;
+    private MemberLoader loader;
+
+    ClassModel(int kind, String name)
+    {
+        this.kind = kind;
+        this.name = name;
+    }
+
+    /** Leaves the given sections empty until something reads them, then has loader fill them. */
+    void deferMembers(int sections, MemberLoader loader)
+    {
+        this.loader = loader;
+        this.pending = sections;
+    }
+
+    List<MemberModel> fields()
+    {
+        load(FIELDS);
+        return fields;
+    }
+
+    List<MemberModel> constructors()
+    {
+        load(CONSTRUCTORS);
+        return constructors;
+    }
+
+    List<MemberModel> methods()
+    {
+        load(METHODS);
+        return methods;
+    }
+
+    List<MemberModel> members(int section)
+    {
+        return section == FIELDS ? fields() : section == CONSTRUCTORS ? constructors() : methods();
+    }
+
+    /** The size of one member section, asked of the loader rather than loaded where it can tell. */
+    int memberCount(int section)
+    {
+        if ((pending & section) != 0)
+        {
+            synchronized (this)
+            {
+                if ((pending & section) != 0)
+                {
+                    int count = loader.count(this, section);
+                    if (count >= 0) return count;
+                }
+            }
+        }
+        return members(section).size();
+    }
+
+    /** True if no member section is still waiting for its loader. */
+    boolean membersLoaded()
+    {
+        return pending == 0;
+    }
+
+    /** Loads every deferred section, e.g. before whatever the loader reads from is closed. */
+    void loadMembers()
+    {
+        load(FIELDS);
+        load(CONSTRUCTORS);
+        load(METHODS);
+    }
+
+    private void load(int section)
+    {
+        if ((pending & section) == 0) return;
+
+        synchronized (this)
+        {
+            if ((pending & section) == 0) return;
+
+            loader.load(this, section);
+            int left = pending & ~section;
+            if (left == 0) loader = null;
+            pending = left;
+        }
+    }
+
+    String simpleName()
+    {
+        return name.substring(name.lastIndexOf('.') + 1);
+    }
+
+    String packageName()
+    {
+        int lastDot = name.lastIndexOf('.');
+        return lastDot >= 0 ? name.substring(0, lastDot) : "";
+    }
+
+    /**
+     * Returns a copy sharing the header, with the chosen member lists left
+     * empty. Sections this class has not loaded yet stay deferred in the
+     * copy, which loads them here when asked.
+     */
+    ClassModel without(boolean dropFields, boolean dropMethods)
+    {
+        ClassModel copy = new ClassModel(kind, name);
+        copy.superName = superName;
+        copy.interfaces = interfaces;
+        copy.mark = mark;
+        copy.stamp = stamp;
+        copy.fields = dropFields ? new ArrayList<>() : fields;
+        copy.constructors = constructors;
+        copy.methods = dropMethods ? new ArrayList<>() : methods;
+
+        int shared = pending & ~(dropFields ? FIELDS : 0) & ~(dropMethods ? METHODS : 0);
+        if (shared != 0)
+        {
+            // the loader fills the lists in place, so the copy's references see the members
+            copy.deferMembers(shared, new MemberLoader()
+            {
+                @Override
+                public void load(ClassModel cls, int section)
+                {
+                    ClassModel.this.load(section);
+                }
+
+                @Override
+                public int count(ClassModel cls, int section)
+                {
+                    return memberCount(section);
+                }
+            });
+        }
+        return copy;
+    }
+
+    /** Appends the Class:/Extends:/.../---- records the extractor used to print. */
+    void appendRecords(List<String> out)
+    {
+        if (kind == ANNOTATION)
+        {
+            out.add("Annotation: " + name);
+        }
+        else if (kind == INTERFACE)
+        {
+            out.add("Interface: " + name);
+        }
+        else
+        {
+            out.add("Class: " + name);
+        }
+
+        if (superName != null)
+        {
+            out.add("Extends: " + superName);
+        }
+
+        if (interfaces.length > 0)
+        {
+            out.add("Implements:");
+            for (String theInterface : interfaces)
+            {
+                out.add("  - " + theInterface);
+            }
+        }
+
+        appendMembers("Fields:", fields(), out);
+        appendMembers("Constructors:", constructors(), out);
+        appendMembers("Methods:", methods(), out);
+
+        out.add("----------------------------------------------------\n");
+    }
+
+    private static void appendMembers(String header, List<MemberModel> members, List<String> out)
+    {
+        if (members.isEmpty()) return;
+
+        out.add(header);
+        for (MemberModel member : members)
+        {
+            StringBuilder sb = MemberModel.lineBuilder().append("  - ");
+            member.appendTo(sb);
+            out.add(sb.toString());
+        }
+    }
+
+    /** Same records as appendRecords, written as newline-terminated text. */
+    void appendText(StringBuilder out)
+    {
+        appendHeaderText(out);
+
+        appendMembers("Fields:", fields(), out);
+        appendMembers("Constructors:", constructors(), out);
+        appendMembers("Methods:", methods(), out);
+
+        out.append("----------------------------------------------------\n\n");
+    }
+
+    /** The Class:, Extends: and Implements: lines of appendText(), which need no members. */
+    void appendHeaderText(StringBuilder out)
+    {
+        out.append(kind == ANNOTATION ? "Annotation: " : kind == INTERFACE ? "Interface: " : "Class: ").append(name).append('\n');
+
+        if (superName != null)
+        {
+            out.append("Extends: ").append(superName).append('\n');
+        }
+
+        if (interfaces.length > 0)
+        {
+            out.append("Implements:\n");
+            for (String theInterface : interfaces)
+            {
+                out.append("  - ").append(theInterface).append('\n');
+            }
+        }
+    }
+
+    private static void appendMembers(String header, List<MemberModel> members, StringBuilder out)
+    {
+        if (members.isEmpty()) return;
+
+        out.append(header).append('\n');
+        for (MemberModel member : members)
+        {
+            member.appendTo(out.append("  - "));
+            out.append('\n');
+        }
+    }
+
+    static List<String> toRecords(List<ClassModel> classes)
+    {
+        List<String> records = new ArrayList<>();
+        for (ClassModel cls : classes)
+        {
+            cls.appendRecords(records);
+        }
+        return records;
+    }
+
+    /** Rebuilds models from text records, for callers that still hold the List<String> form. */
+    static List<ClassModel> parse(List<String> records)
+    {
+        return parse(records, new TypeNames());
+    }
+
+    static List<ClassModel> parse(List<String> records, TypeNames names)
+    {
+        List<ClassModel> classes = new ArrayList<>();
+        List<String> interfaces = new ArrayList<>();
+        ClassModel current = null;
+        int section = 0;
+
+        for (String line : records)
+        {
+            String trimmed = line.trim();
+
+            if (trimmed.startsWith("Class:") || trimmed.startsWith("Interface:") || trimmed.startsWith("Annotation:"))
+            {
+                finish(current, interfaces, names);
+                int colon = trimmed.indexOf(':');
+                int kind = trimmed.startsWith("Class:") ? CLASS : trimmed.startsWith("Interface:") ? INTERFACE : ANNOTATION;
+                current = new ClassModel(kind, names.intern(trimmed.substring(colon + 1).trim()));
+                classes.add(current);
+                section = 0;
+            }
+            else if (current == null)
+            {
+                continue;
+            }
+            else if (trimmed.startsWith("Extends:"))
+            {
+                current.superName = names.intern(trimmed.substring(8).trim());
+            }
+            else if (trimmed.startsWith("Implements:"))
+            {
+                section = 1;
+            }
+            else if (trimmed.startsWith("Fields:"))
+            {
+                section = 2;
+            }
+            else if (trimmed.startsWith("Constructors:"))
+            {
+                section = 3;
+            }
+            else if (trimmed.startsWith("Methods:"))
+            {
+                section = 4;
+            }
+            else if (trimmed.startsWith("----"))
+            {
+                finish(current, interfaces, names);
+                current = null;
+            }
+            else if (trimmed.startsWith("- ") || trimmed.equals("-"))
+            {
+                String item = trimmed.substring(1).trim();
+                switch (section)
+                {
+                    case 1: interfaces.add(item); break;
+                    case 2: current.fields.add(MemberModel.parse(item, false, names)); break;
+                    case 3: current.constructors.add(MemberModel.parse(item, true, names)); break;
+                    case 4: current.methods.add(MemberModel.parse(item, true, names)); break;
+                    default:
+                        ;
+                }
+            }
+        }
+        finish(current, interfaces, names);
+
+        return classes;
+    }
+
+    private static void finish(ClassModel cls, List<String> interfaces, TypeNames names)
+    {
+        if (cls == null || interfaces.isEmpty()) return;
+
+        cls.interfaces = new String[interfaces.size()];
+        for (int i = 0; i < cls.interfaces.length; i++)
+        {
+            cls.interfaces[i] = names.intern(interfaces.get(i));
+        }
+        interfaces.clear();
+    }
+}
+
+/**
+ * A field, constructor or method. Fields have no params, constructors
+ * have no type; both names are simple names as shown in the diagram.
+ */
+class MemberModel
+{
+    final int modifiers;
+    final String type;
+    final String name;
+    final String[] params;
+
+    /** How a diff diagram marks the member, "added" or "removed"; null elsewhere. */
+    final String mark;
+
+    MemberModel(int modifiers, String type, String name, String[] params)
+    {
+        this(modifiers, type, name, params, null);
+    }
+
+    MemberModel(int modifiers, String type, String name, String[] params, String mark)
+    {
+        this.modifiers = modifiers;
+        this.type = type;
+        this.name = name;
+        this.params = params;
+        this.mark = mark;
+    }
+
+    MemberModel marked(String mark)
+    {
+        return new MemberModel(modifiers, type, name, params, mark);
+    }
+
+    private static final ThreadLocal<StringBuilder> LINE = ThreadLocal.withInitial(() -> new StringBuilder(256));
+
+    private static final String[] MODIFIER_TEXT = new String[0x1000];
+
+    /**
+     * Returns this thread's line builder, emptied. Callers use it for one
+     * line at a time and must not hold on to it.
+     */
+    static StringBuilder lineBuilder()
+    {
+        StringBuilder sb = LINE.get();
+        sb.setLength(0);
+        return sb;
+    }
+
+    /** Modifier.toString(modifiers), computed once per distinct set of modifiers. */
+    static String modifierText(int modifiers)
+    {
+        int mask = modifiers & 0xFFF;
+        String text = MODIFIER_TEXT[mask];
+        if (text == null)
+        {
+            text = Modifier.toString(mask);
+            MODIFIER_TEXT[mask] = text;
+        }
+        return text;
+    }
+
+    /** Name and parameter list, e.g. "publish(Event)". Fields just give their name. */
+    String signature()
+    {
+        if (params == null) return name;
+
+        StringBuilder sb = lineBuilder();
+        appendSignature(sb);
+        return sb.toString();
+    }
+
+    void appendSignature(StringBuilder sb)
+    {
+        sb.append(name);
+        if (params == null) return;
+
+        sb.append('(');
+        for (int i = 0; i < params.length; i++)
+        {
+            if (i > 0) sb.append(", ");
+            sb.append(params[i]);
+        }
+        sb.append(')');
+    }
+
+    /** Appends the member as it appears after "  - " in the text records. */
+    void appendTo(StringBuilder sb)
+    {
+        sb.append(modifierText(modifiers)).append(' ');
+        if (type != null)
+        {
+            sb.append(type).append(' ');
+        }
+        appendSignature(sb);
+    }
+
+    @Override
+    public String toString()
+    {
+        StringBuilder sb = lineBuilder();
+        appendTo(sb);
+        return sb.toString();
+    }
+
+    private static final String[] MODIFIER_WORDS = {
+        "public", "protected", "private", "abstract", "static", "final", "transient",
+        "volatile", "synchronized", "native", "strictfp", "interface"
+    };
+
+    private static final int[] MODIFIER_BITS = {
+        Modifier.PUBLIC, Modifier.PROTECTED, Modifier.PRIVATE, Modifier.ABSTRACT, Modifier.STATIC,
+        Modifier.FINAL, Modifier.TRANSIENT, Modifier.VOLATILE, Modifier.SYNCHRONIZED, Modifier.NATIVE,
+        Modifier.STRICT, Modifier.INTERFACE
+    };
+
+    /** Parses the text after "  - " in a Fields:, Constructors: or Methods: record. */
+    static MemberModel parse(String text, boolean executable, TypeNames names)
+    {
+        int modifiers = 0;
+        int pos = 0;
+
+        while (true)
+        {
+            while (pos < text.length() && text.charAt(pos) == ' ') pos++;
+            int end = text.indexOf(' ', pos);
+            if (end < 0) break;
+
+            int bit = modifierBit(text.substring(pos, end));
+            if (bit == 0) break;
+            modifiers |= bit;
+            pos = end;
+        }
+
+        String rest = text.substring(pos);
+        String[] params = null;
+
+        if (executable)
+        {
+            int open = rest.indexOf('(');
+            int close = rest.lastIndexOf(')');
+            String inner = open >= 0 && close > open ? rest.substring(open + 1, close) : "";
+            params = inner.isEmpty() ? ClassModel.NO_NAMES : inner.split(", ", -1);
+            for (int i = 0; i < params.length; i++)
+            {
+                params[i] = names.intern(params[i]);
+            }
+            rest = open >= 0 ? rest.substring(0, open) : rest;
+        }
+
+        int space = rest.lastIndexOf(' ');
+        String type = space >= 0 ? names.intern(rest.substring(0, space).trim()) : null;
+        String name = rest.substring(space + 1);
+
+        return new MemberModel(modifiers, type, name, params);
+    }
+
+    private static int modifierBit(String word)
+    {
+        for (int i = 0; i < MODIFIER_WORDS.length; i++)
+        {
+            if (MODIFIER_WORDS[i].equals(word)) return MODIFIER_BITS[i];
+        }
+        return 0;
+    }
+}
+
+/**
+ * Interns the type names seen during one extraction, so the many members
+ * sharing a type also share the String.
+ */
+class TypeNames
+{
+    /** Simple names of the return and parameter types in a method descriptor. */
+    static class MethodType
+    {
+        final String returnType;
+        final String[] params;
+
+        MethodType(String returnType, String[] params)
+        {
+            this.returnType = returnType;
+            this.params = params;
+        }
+    }
+
+    private final ConcurrentHashMap<String, String> names = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, MethodType> methodTypes = new ConcurrentHashMap<>();
+
+    String intern(String name)
+    {
+        String existing = names.putIfAbsent(name, name);
+        return existing != null ? existing : name;
+    }
+
+    /**
+     * Returns the parsed form of a method descriptor, parsing it only the
+     * first time it is seen. The params array is shared by every member
+     * with that descriptor and must not be changed.
+     */
+    MethodType methodType(String descriptor, Function<String, MethodType> parse)
+    {
+        MethodType type = methodTypes.get(descriptor);
+        if (type == null)
+        {
+            type = methodTypes.computeIfAbsent(descriptor, parse);
+        }
+        return type;
+    }
+}
@@ -0,0 +1,389 @@
+import java.io.IOException;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.function.Predicate;
+import java.util.stream.IntStream;
+
+/**
+ * The relations one class takes part in, worked out once and shared by
+ * every formatter drawing it: the superclass, the implemented interfaces
+ * and the class each field points at.
+ */
+class ClassRelations
+{
+    final String name;
+    final String parent;
+    final String[] interfaces;
+    final String[] interfaceNames;
+    final String[] fieldTargets;
+    final boolean[] fieldMany;
+
+    private static final Set<String> COLLECTIONS = Set.of(
+        "Collection", "List", "Set", "SortedSet", "NavigableSet", "Queue", "Deque", "Iterable",
+        "ArrayList", "LinkedList", "HashSet", "LinkedHashSet", "TreeSet", "ArrayDeque",
+        "CopyOnWriteArrayList", "Stream");
+
+    private final String fullName;
+
+    ClassRelations(ClassModel cls)
+    {
+        name = cls.simpleName();
+        fullName = cls.name;
+
+        parent = cls.superName != null && !cls.superName.equals("java.lang.Object")
+               ? DiagramText.simpleName(cls.superName) : null;
+
+        interfaces = cls.interfaces;
+        interfaceNames = new String[interfaces.length];
+        for (int i = 0; i < interfaces.length; i++)
+        {
+            interfaceNames[i] = DiagramText.simpleName(interfaces[i]);
+        }
+
+        List<MemberModel> fields = cls.fields();
+        fieldTargets = new String[fields.size()];
+        fieldMany = new boolean[fieldTargets.length];
+        for (int i = 0; i < fieldTargets.length; i++)
+        {
+            String type = fields.get(i).type;
+            String target = fieldTarget(type);
+            if (target == null) continue;
+
+            if (target.endsWith("[]"))
+            {
+                target = target.substring(0, target.indexOf('['));
+                fieldMany[i] = true;
+            }
+            else if (type.endsWith(">") && type.indexOf('<') > 0 && target.indexOf(',') < 0
+                     && COLLECTIONS.contains(type.substring(0, type.indexOf('<'))))
+            {
+                fieldMany[i] = true;
+            }
+            fieldTargets[i] = target;
+        }
+    }
+
+    /** Decides what becomes of one relation: the name to draw its other end as, or null to drop it. */
+    interface RelationMapper
+    {
+        String map(int kind, String target);
+    }
+
+    private ClassRelations(String name, String fullName, String parent, String[] interfaces, String[] interfaceNames,
+                           String[] fieldTargets, boolean[] fieldMany)
+    {
+        this.name = name;
+        this.fullName = fullName;
+        this.parent = parent;
+        this.interfaces = interfaces;
+        this.interfaceNames = interfaceNames;
+        this.fieldTargets = fieldTargets;
+        this.fieldMany = fieldMany;
+    }
+
+    /** Plain associations from name to each of targets, for a node that stands for several classes. */
+    static ClassRelations associations(String name, List<String> targets)
+    {
+        String[] fieldTargets = targets.toArray(ClassModel.NO_NAMES);
+        return new ClassRelations(name, name, null, ClassModel.NO_NAMES, ClassModel.NO_NAMES,
+                                  fieldTargets, new boolean[fieldTargets.length]);
+    }
+
+    /** A copy without the relations whose other end, by simple name, keep rejects. */
+    ClassRelations within(Predicate<String> keep)
+    {
+        return mapped((kind, target) -> keep.test(target) ? target : null);
+    }
+
+    /**
+     * A copy with each relation's other end, by simple name and with its
+     * RelationGraph kind, passed through mapper. An interface that is
+     * renamed is drawn under the new name only.
+     */
+    ClassRelations mapped(RelationMapper mapper)
+    {
+        String keptParent = parent != null ? mapper.map(RelationGraph.EXTENDS, parent) : null;
+
+        List<String> kept = new ArrayList<>();
+        List<String> keptNames = new ArrayList<>();
+        for (int i = 0; i < interfaces.length; i++)
+        {
+            String target = mapper.map(RelationGraph.IMPLEMENTS, interfaceNames[i]);
+            if (target != null)
+            {
+                kept.add(target.equals(interfaceNames[i]) ? interfaces[i] : target);
+                keptNames.add(target);
+            }
+        }
+
+        String[] keptTargets = fieldTargets.clone();
+        for (int i = 0; i < keptTargets.length; i++)
+        {
+            if (keptTargets[i] != null) keptTargets[i] = mapper.map(RelationGraph.ASSOCIATION, keptTargets[i]);
+        }
+
+        return new ClassRelations(name, fullName, keptParent, kept.toArray(ClassModel.NO_NAMES),
+                                  keptNames.toArray(ClassModel.NO_NAMES), keptTargets, fieldMany);
+    }
+
+    /** Adds this class's edges to graph; repeats of an edge are merged there. */
+    void addTo(RelationGraph graph)
+    {
+        int self = graph.node(name, fullName);
+
+        if (parent != null)
+        {
+            graph.addEdge(self, graph.node(parent), RelationGraph.EXTENDS, false);
+        }
+
+        for (int i = 0; i < interfaces.length; i++)
+        {
+            graph.addEdge(self, graph.node(interfaceNames[i], interfaces[i]), RelationGraph.IMPLEMENTS, false);
+        }
+
+        for (int i = 0; i < fieldTargets.length; i++)
+        {
+            if (fieldTargets[i] != null)
+            {
+                graph.addEdge(self, graph.node(fieldTargets[i]), RelationGraph.ASSOCIATION, fieldMany[i]);
+            }
+        }
+    }
+
+    /**
+     * The class a field of this type is drawn pointing at, or null for
+     * primitives. For a generic type that is what is inside the brackets.
+     */
+    static String fieldTarget(String type)
+    {
+        if (!Character.isUpperCase(type.charAt(0))) return null;
+
+        if (type.endsWith(">"))
+        {
+            int start = type.indexOf("<");
+            return type.substring(start + 1, type.length() - 1);
+        }
+        return type;
+    }
+}
+
+/** Text helpers shared by the formatters. */
+final class DiagramText
+{
+    private DiagramText()
+    {
+    }
+
+    // one entry per combination of the twelve Modifier bits, filled on first use
+    private static final String[] ACCESS_PREFIX = new String[0x1000];
+    private static final String[] UML_PREFIX = new String[0x1000];
+    private static final String[] YUML_PREFIX = new String[0x1000];
+    private static final String[] FIELD_ACCESS = new String[8];
+
+    /**
+     * Modifier.toString with the access keyword replaced by its UML mark,
+     * e.g. "+ static"; a member without one keeps a leading "- ".
+     */
+    static String accessPrefix(int modifiers)
+    {
+        int mask = modifiers & 0xFFF;
+        String prefix = ACCESS_PREFIX[mask];
+        if (prefix == null)
+        {
+            prefix = buildAccessPrefix(mask);
+            ACCESS_PREFIX[mask] = prefix;
+        }
+        return prefix;
+    }
+
+    /** accessPrefix with abstract written as PlantUML's {abstract}. */
+    static String umlPrefix(int modifiers)
+    {
+        int mask = modifiers & 0xFFF;
+        String prefix = UML_PREFIX[mask];
+        if (prefix == null)
+        {
+            prefix = accessPrefix(mask);
+            if (Modifier.isAbstract(mask))
+            {
+                prefix = prefix.replace("abstract", "{abstract}");
+            }
+            UML_PREFIX[mask] = prefix;
+        }
+        return prefix;
+    }
+
+    /**
+     * What yUML shows before a constructor or method: accessPrefix and its
+     * separating space, less the first two characters.
+     */
+    static String yumlPrefix(int modifiers)
+    {
+        int mask = modifiers & 0xFFF;
+        String prefix = YUML_PREFIX[mask];
+        if (prefix == null)
+        {
+            prefix = (accessPrefix(mask) + " ").substring(2);
+            YUML_PREFIX[mask] = prefix;
+        }
+        return prefix;
+    }
+
+    /** The field access mark alone: "+", "#", or "-" for private and package-private alike. */
+    static String fieldAccess(int modifiers)
+    {
+        int mask = modifiers & (Modifier.PUBLIC | Modifier.PROTECTED | Modifier.PRIVATE);
+        String access = FIELD_ACCESS[mask];
+        if (access == null)
+        {
+            access = accessPrefix(mask).trim();
+            FIELD_ACCESS[mask] = access;
+        }
+        return access;
+    }
+
+    private static String buildAccessPrefix(int modifiers)
+    {
+        String text = Modifier.toString(modifiers);
+        String mark = Modifier.isPublic(modifiers) ? "+" : Modifier.isProtected(modifiers) ? "#"
+                    : Modifier.isPrivate(modifiers) ? "-" : null;
+        if (mark == null)
+        {
+            return "- " + text;
+        }
+
+        // Modifier.toString always puts the access keyword first
+        int space = text.indexOf(' ');
+        return mark + (space < 0 ? "" : text.substring(space));
+    }
+
+    /** The background a class mark is drawn with, in a name both PlantUML and yUML know. */
+    static String markColor(String mark)
+    {
+        switch (mark)
+        {
+            case "added":
+                return "palegreen";
+            case "removed":
+                return "lightcoral";
+            case "package":
+                return "lightblue";
+            default:
+                return "lightyellow";
+        }
+    }
+
+    /** Appends the member's diff mark, if it has one, as a trailing stereotype. */
+    static StringBuilder appendMark(StringBuilder sb, MemberModel member)
+    {
+        if (member.mark != null)
+        {
+            sb.append(" <<").append(member.mark).append(">>");
+        }
+        return sb;
+    }
+
+    static String simpleName(String fullName)
+    {
+        int lastDot = fullName.lastIndexOf('.');
+        if (lastDot >= 0)
+        {
+            return fullName.substring(lastDot + 1);
+        }
+        return fullName;
+    }
+}
+
+/**
+ * Feeds each class to several writers, working out its relations once
+ * for all of them, so one pass over the classes renders every format.
+ */
+class MultiDiagramWriter implements DiagramWriter
+{
+    private final List<DiagramWriter> writers;
+
+    MultiDiagramWriter(List<DiagramWriter> writers)
+    {
+        this.writers = writers;
+    }
+
+    @Override
+    public void add(ClassModel cls, ClassRelations relations) throws IOException
+    {
+        for (DiagramWriter writer : writers)
+        {
+            writer.add(cls, relations);
+        }
+    }
+
+    /**
+     * Still one pass over the classes: each class's relations are worked
+     * out once, and with parallel set every writer's block for it is
+     * rendered from them on the common fork-join pool, then all are
+     * written in order.
+     */
+    @Override
+    public void addAll(List<ClassModel> classes, boolean parallel) throws IOException
+    {
+        if (!parallel)
+        {
+            DiagramWriter.super.addAll(classes, false);
+            return;
+        }
+
+        for (int start = 0; start < classes.size(); start += RENDER_BATCH)
+        {
+            List<ClassModel> batch = classes.subList(start, Math.min(start + RENDER_BATCH, classes.size()));
+            ClassRelations[] relations = new ClassRelations[batch.size()];
+            String[][][] blocks = new String[writers.size()][batch.size()][];
+
+            IntStream.range(0, batch.size()).parallel().forEach(i ->
+            {
+                relations[i] = new ClassRelations(batch.get(i));
+                for (int w = 0; w < blocks.length; w++)
+                {
+                    blocks[w][i] = writers.get(w).render(batch.get(i), relations[i]);
+                }
+            });
+
+            for (int i = 0; i < relations.length; i++)
+            {
+                for (int w = 0; w < blocks.length; w++)
+                {
+                    DiagramWriter writer = writers.get(w);
+                    if (blocks[w][i] != null) writer.addRendered(batch.get(i), relations[i], blocks[w][i]);
+                    else writer.add(batch.get(i), relations[i]);
+                }
+            }
+        }
+    }
+
+    @Override
+    public void addStub(ClassModel cls) throws IOException
+    {
+        for (DiagramWriter writer : writers)
+        {
+            writer.addStub(cls);
+        }
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        IOException failure = null;
+        for (DiagramWriter writer : writers)
+        {
+            try
+            {
+                writer.close();
+
+            } catch (IOException e)
+            {
+                if (failure == null) failure = e;
+            }
+        }
+        if (failure != null) throw failure;
+    }
+}
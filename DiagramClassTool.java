@@ -1,11 +1,154 @@
+import java.io.Closeable;
 import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.StringTokenizer;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.IntStream;
+
+interface LineSink 
+{
+    void line(String line) throws IOException;
+}
+
+/**
+ * Receives classes one at a time and writes their blocks as they arrive.
+ * Relations are held back until close(), which also writes the footer.
+ */
+interface DiagramWriter 
+{
+    /** How many classes addAll renders ahead in parallel; bounds the blocks waiting in memory. */
+    int RENDER_BATCH = 4096;
+
+    default void add(ClassModel cls) throws IOException
+    {
+        add(cls, new ClassRelations(cls));
+    }
+
+    /** Adds a class whose relations the caller has already worked out. */
+    void add(ClassModel cls, ClassRelations relations) throws IOException;
+
+    /**
+     * Adds the classes in order. With parallel set, their relations and
+     * blocks are worked out on the common fork-join pool a batch at a
+     * time and then written in order, so the diagram is the same as the
+     * sequential one as long as each model reads the same whichever
+     * thread renders it, which is why the reflective extractor puts
+     * members into class-file order. Only recording relations stays on
+     * this thread.
+     */
+    default void addAll(List<ClassModel> classes, boolean parallel) throws IOException
+    {
+        if (!parallel) 
+        {
+            for (ClassModel cls : classes) 
+            {
+                add(cls);
+            }
+            return;
+        }
+
+        for (int start = 0; start < classes.size(); start += RENDER_BATCH) 
+        {
+            List<ClassModel> batch = classes.subList(start, Math.min(start + RENDER_BATCH, classes.size()));
+            ClassRelations[] relations = new ClassRelations[batch.size()];
+            String[][] blocks = new String[batch.size()][];
+
+            IntStream.range(0, batch.size()).parallel().forEach(i -> 
+            {
+                relations[i] = new ClassRelations(batch.get(i));
+                blocks[i] = render(batch.get(i), relations[i]);
+            });
+
+            for (int i = 0; i < blocks.length; i++) 
+            {
+                if (blocks[i] != null) addRendered(batch.get(i), relations[i], blocks[i]);
+                else add(batch.get(i), relations[i]);
+            }
+        }
+    }
+
+    /**
+     * The lines of the class's own block, rendered without touching the
+     * writer's state so any thread may call it; null if this writer can
+     * only add classes one by one.
+     */
+    default String[] render(ClassModel cls, ClassRelations relations)
+    {
+        return null;
+    }
+
+    /** Writes a block from render() and records the relations, as add() would have. */
+    default void addRendered(ClassModel cls, ClassRelations relations, String[] block) throws IOException
+    {
+        add(cls, relations);
+    }
+
+    /**
+     * Draws a class that belongs to another diagram: the header only,
+     * marked as a stub where the format allows, and without relations.
+     */
+    default void addStub(ClassModel cls) throws IOException
+    {
+        ClassModel header = new ClassModel(cls.kind, cls.name);
+        add(header, new ClassRelations(header));
+    }
+
+    void close() throws IOException;
+}
 
 interface DiagramFormatter 
 {
-    List<String> format(List<String> classInfo);
+    DiagramWriter open(LineSink out) throws IOException;
+
+    default List<String> formatClasses(List<ClassModel> classes)
+    {
+        List<String> result = new ArrayList<>();
+        try 
+        {
+            write(classes, (LineSink) result::add);
+
+        } catch (IOException e) 
+        {
+            throw new UncheckedIOException(e);
+        }
+        return result;
+    }
+
+    /** Writes the diagram line by line into out, without collecting it first. */
+    default void write(List<ClassModel> classes, LineSink out) throws IOException
+    {
+        write(classes, out, false);
+    }
+
+    /** As write(classes, out), rendering the class blocks in parallel if asked; the output is the same. */
+    default void write(List<ClassModel> classes, LineSink out, boolean parallel) throws IOException
+    {
+        DiagramWriter writer = open(out);
+        writer.addAll(classes, parallel);
+        writer.close();
+    }
+
+    default void write(List<ClassModel> classes, Appendable out) throws IOException
+    {
+        write(classes, (LineSink) line -> out.append(line).append(System.lineSeparator()));
+    }
+
+    /** Encodes the diagram as UTF-8 into out through a large buffer; out is left open. */
+    default void write(List<ClassModel> classes, WritableByteChannel out) throws IOException
+    {
+        ChannelLineWriter writer = new ChannelLineWriter(out, false);
+        write(classes, (LineSink) writer);
+        writer.close();
+    }
+
+    default List<String> format(List<String> classInfo)
+    {
+        return formatClasses(ClassModel.parse(classInfo));
+    }
 }
 
 class DiagramPreProcessor
@@ -14,6 +157,7 @@ class DiagramPreProcessor
     boolean attributes;
     boolean name;
     List<String> ignoreClasses;
+    ClassFilter filter;
     List<String> classInfo;
 
     public DiagramPreProcessor(List<String> classInfo, boolean methods, boolean attributes, boolean name, List<String> ignoreClasses) 
@@ -22,102 +166,49 @@ class DiagramPreProcessor
         this.attributes = attributes;
         this.name = name;
         this.ignoreClasses = ignoreClasses;
+        this.filter = ignoreClasses != null ? new ClassFilter(ignoreClasses) : ClassFilter.NONE;
         this.classInfo = classInfo;
     }
 
-    List<String> ProcessInfo()
+    public DiagramPreProcessor(boolean methods, boolean attributes, boolean name, List<String> ignoreClasses) 
     {
-        List<String> processedInfo = new ArrayList<>();
-
-        String currentClass;
+        this(null, methods, attributes, name, ignoreClasses);
+    }
 
-        int statesFlag = 0;
+    List<String> ProcessInfo()
+    {
+        return ClassModel.toRecords(process(ClassModel.parse(classInfo)));
+    }
 
+    List<ClassModel> process(List<ClassModel> classes)
+    {
+        List<ClassModel> processedInfo = new ArrayList<>();
 
-        for (String line : classInfo) 
+        for (ClassModel cls : classes) 
         {
-            
-                if(line.startsWith("Class:"))
-                {
-                    currentClass = extractSimpleName(line.substring(6).trim());
-
-                    if(ignoreClasses.contains(currentClass))
-                    {
-                        statesFlag = 1;
-                    }
-
-                }else if(line.startsWith("Fields:") && attributes && statesFlag !=1)
-                {
-                    statesFlag = 2;
-        
-                }else if(line.startsWith("Methods") && methods && statesFlag !=1)
-                {
-                    statesFlag = 3;
-        
-                }
-            
-            
-
-            switch (statesFlag) 
-            {
-                case 0:
-                {
-                    processedInfo.add(line);
-                    break;
-                }
-                case 1:
-                {
-                    if(!line.startsWith("----"))  break;
-                    statesFlag = 0;
-                    break;
-                }
-                case 2:
-                {
-                    if(line.startsWith("Methods:") || line.startsWith("Constructors:") || line.startsWith("Class:") ||
-                    line.startsWith("Interface:") || line.startsWith("Extends:"))
-                    {
-                        statesFlag = 0;
-                        if(line.startsWith("Methods:") && methods)  break;
-                         
-                        processedInfo.add(line);
-                        
-                       
-                    }
-                    
-                    break;
-                }
-                case 3:
-                {
-                    if(line.startsWith("Fields:") || line.startsWith("Constructors:") || line.startsWith("Class:") ||
-                    line.startsWith("Interface:") || line.startsWith("Extends:"))
-                    {
-                        statesFlag = 0;
-                        if(line.startsWith("Fields:") && attributes)  break;
-
-                        processedInfo.add(line);
-                    }
-
-                    
-                    break;
-                   
-                }
-                default:
-                    processedInfo.add(line);
-            }   
-            
+            cls = process(cls);
+            if (cls != null) processedInfo.add(cls);
         }
 
-
         return processedInfo;
     }
 
-    private String extractSimpleName(String fullName) 
+    /**
+     * Filters a single class; returns null if the class is ignored. See
+     * ClassFilter for the forms the ignore list entries can take.
+     */
+    ClassModel process(ClassModel cls)
     {
-        int lastDot = fullName.lastIndexOf('.');
-        if (lastDot >= 0) {
-            return fullName.substring(lastDot + 1);
+        if (filter.excludes(cls))
+        {
+            return null;
+        }
+
+        if (attributes || methods)
+        {
+            cls = cls.without(attributes, methods);
         }
-        return fullName;
+        return cls;
     }
     
 }
@@ -126,338 +217,239 @@ class PlantUMLFormatter implements DiagramFormatter
 {
 
     @Override
-    public List<String> format(List<String> classInfos) 
+    public DiagramWriter open(LineSink out) throws IOException 
     {
-        List<String> result = new ArrayList<>();
-        List<String> relationList = new ArrayList<>();
-        result.add("@startuml");
-
-        String currentClass = null;
-        boolean insideClass = false;
-        int statusFlag = 0;
+        out.line("@startuml");
 
-        for (String line : classInfos) 
+        return new DiagramWriter() 
         {
-            line = line.trim();
+            RelationGraph graph = new RelationGraph();
 
-            if (line.startsWith("Class:") || (line.startsWith("Interface:"))) 
+            @Override
+            public void add(ClassModel cls, ClassRelations relations) throws IOException 
             {
-                statusFlag = 0;
-                if (insideClass) 
-                {
-                    result.add("}");
-                }
-                insideClass = true;
-                
-                if(line.startsWith("Class:"))
-                {
-                    currentClass = extractSimpleName(line.substring(6).trim());
-                    result.add("class " + currentClass + " {");
-                } 
-                else  
-                {
-                    currentClass = extractSimpleName(line.substring(10).trim());
-                    result.add("interface " + currentClass + " {");
-                }                               
-                
+                relations.addTo(graph);
+                write(cls, relations, out);
+                ToolMetrics.INSTANCE.membersRendered.add(cls.fields().size() + cls.constructors().size() + cls.methods().size());
+            }
 
-            } else if (line.startsWith("Extends:")) 
+            @Override
+            public String[] render(ClassModel cls, ClassRelations relations) 
             {
-                String parentFullName = line.substring(8).trim();
-                if (!parentFullName.equals("java.lang.Object")) 
+                List<String> lines = new ArrayList<>();
+                try 
                 {
-                    String parentClass = extractSimpleName(parentFullName);
-                    relationList.add(parentClass + " <|-- " + currentClass);
+                    write(cls, relations, lines::add);
+
+                } catch (IOException e) 
+                {
+                    // adding to a list does not fail
+                    throw new UncheckedIOException(e);
                 }
+                return lines.toArray(new String[0]);
+            }
 
-            } else if (line.startsWith("Implements:")) 
+            @Override
+            public void addRendered(ClassModel cls, ClassRelations relations, String[] block) throws IOException 
             {
-                statusFlag = 1;
+                relations.addTo(graph);
+                for (String line : block) 
+                {
+                    out.line(line);
+                }
+                ToolMetrics.INSTANCE.membersRendered.add(cls.fields().size() + cls.constructors().size() + cls.methods().size());
+            }
 
-            } else if (line.startsWith("Constructors:")) 
+            @Override
+            public void addStub(ClassModel cls) throws IOException 
             {
-                statusFlag = 2;
+                String keyword = cls.kind == ClassModel.INTERFACE ? "interface " 
+                               : cls.kind == ClassModel.ANNOTATION ? "annotation " : "class ";
+                out.line(keyword + cls.simpleName() + " <<stub>>");
+            }
 
-            } else if (line.startsWith("Methods:")) 
-            {
-                statusFlag = 3;
-                
-            }else if(line.startsWith("Fields:"))
+            @Override
+            public void close() throws IOException 
             {
-                statusFlag = 4;
-
-            } else if (line.contains("----")) {
-                if (insideClass) {
-                    result.add("}");
-                    insideClass = false;
-                    statusFlag = 0;
+                for (int edge = 0; edge < graph.edgeCount(); edge++) 
+                {
+                    out.line(relation(graph, edge));
                 }
-                continue;
+                ToolMetrics.INSTANCE.relationsEmitted.add(graph.edgeCount());
+                out.line("@enduml");
             }
+        };
+    }
 
+    private void write(ClassModel cls, ClassRelations relations, LineSink out) throws IOException 
+    {
+        String currentClass = relations.name;
+        if (cls.mark != null) 
+        {
+            currentClass += " <<" + cls.mark + ">> #" + DiagramText.markColor(cls.mark);
+        }
 
-            switch (statusFlag) {
-                case 1: //interface
-                {
-                    if(line.startsWith("Implements:")) break;
-                   
-                    relationList.add(line.substring(1) + " <|.. " + currentClass);
-                    break;
-                }
-                case 2: //constructors
-                {   
-                    if(line.startsWith("Constructors")) break;
-                    line = line.replace("- private", "-");
-                    line = line.replace("- public", "+");
-                    line = line.replace("- protected", "#");
-                    result.add(line);
-                    break;
-                }
-                case 3: // methods
-                {
-                    if(line.startsWith("Methods")) break;
-                    line = line.replace("- private", "-");
-                    line = line.replace("- public", "+");
-                    line = line.replace("- protected", "#");
-                    line = line.replace("abstract", "{abstract}");
-                    result.add(line);
-                    break;
-                }
-                case 4: //fields
-                {
-                    if(line.startsWith("Fields")) break;
-                    line = line.replace("- private", "-");
-                    line = line.replace("- public", "+");
-                    line = line.replace("- protected", "#");
-                    StringTokenizer st = new StringTokenizer(line);
-                    String accMod = st.nextToken(" ");
-                    String theType = st.nextToken(" ");
-                    String theNewLine =  st.nextToken(" ");
-                    if(Character.isUpperCase(theType.charAt(0)))
-                    {
-                        if(theType.endsWith(">"))
-                        {
-                            int start = theType.indexOf("<");
-                            relationList.add(currentClass + " ---> " + theType.substring(start+1, theType.length()-1));
-                        }
-                        else
-                        {
-                            relationList.add(currentClass + " ---> " + theType);
-                        }
-                    }
-                    String inverse = accMod + theNewLine + ":" + theType;
-                    
-                    result.add(inverse);
-                    break;
-                }
+        if (cls.kind == ClassModel.INTERFACE) 
+        {
+            out.line("interface " + currentClass + " {");
+        } 
+        else if (cls.kind == ClassModel.ANNOTATION) 
+        {
+            out.line("annotation " + currentClass + " {");
+        } 
+        else 
+        {
+            out.line("class " + currentClass + " {");
+        }
 
-                default:
-                    ;
-            }
+        // each line is assembled in the thread's line builder from the
+        // precomputed prefixes, so it costs one String
+        for (MemberModel field : cls.fields()) 
+        {
+            StringBuilder sb = MemberModel.lineBuilder();
+            sb.append(DiagramText.fieldAccess(field.modifiers)).append(field.name).append(':').append(field.type);
+            out.line(DiagramText.appendMark(sb, field).toString());
         }
 
-        if (insideClass) 
+        for (MemberModel constructor : cls.constructors()) 
         {
-            result.add("}");
+            StringBuilder sb = MemberModel.lineBuilder();
+            sb.append(DiagramText.accessPrefix(constructor.modifiers)).append(' ');
+            constructor.appendSignature(sb);
+            out.line(DiagramText.appendMark(sb, constructor).toString());
         }
 
-        result.addAll(relationList);
+        for (MemberModel method : cls.methods()) 
+        {
+            StringBuilder sb = MemberModel.lineBuilder();
+            sb.append(DiagramText.umlPrefix(method.modifiers)).append(' ').append(method.type).append(' ');
+            method.appendSignature(sb);
+            out.line(DiagramText.appendMark(sb, method).toString());
+        }
 
-        result.add("@enduml");
-        
-        return result;
+        out.line("}");
     }
 
-    private String extractSimpleName(String fullName) 
+    private static String relation(RelationGraph graph, int edge) 
     {
-        int lastDot = fullName.lastIndexOf('.');
-        if (lastDot >= 0) {
-            return fullName.substring(lastDot + 1);
+        String source = graph.name(graph.source(edge));
+        int target = graph.target(edge);
+
+        switch (graph.kind(edge)) 
+        {
+            case RelationGraph.EXTENDS:
+                return graph.name(target) + " <|-- " + source;
+            case RelationGraph.IMPLEMENTS:
+                return " " + graph.fullName(target) + " <|.. " + source;
+            default:
+                String multiplicity = graph.multiplicity(edge);
+                return source + " ---> " + (multiplicity != null ? "\"" + multiplicity + "\" " : "") + graph.name(target);
         }
-        return fullName;
     }
 }
 
 class YumlFormatter implements DiagramFormatter
 {
     @Override
-    public List<String> format(List<String> classInfos) 
+    public DiagramWriter open(LineSink out) 
     {
-        List<String> result = new ArrayList<>();
-        List<String> relationList = new ArrayList<>();
-
-        String currentClass = null;
-        boolean insideClass = false;
-        int statusFlag = 0;
-        List<String> attributesAndMethods = new ArrayList<>();
-
-        for (String line : classInfos) 
+        return new DiagramWriter() 
         {
-            line = line.trim();
+            RelationGraph graph = new RelationGraph();
 
-            if (line.startsWith("Class:") || (line.startsWith("Interface:"))) 
+            @Override
+            public void add(ClassModel cls, ClassRelations relations) throws IOException 
             {
-                statusFlag = 0;
-                if (insideClass) 
-                {
-                    // output previous class block
-                    result.add(buildYumlClassBlock(currentClass, attributesAndMethods));
-                    attributesAndMethods.clear();
-                }
-                insideClass = true;
-                
-                if(line.startsWith("Class:"))
-                {
-                    currentClass = extractSimpleName(line.substring(6).trim());
-                } 
-                else  
-                {
-                    currentClass = extractSimpleName(line.substring(10).trim());
-                }                               
-                
-
-            } else if (line.startsWith("Extends:")) 
-            {
-                String parentFullName = line.substring(8).trim();
-                if (!parentFullName.equals("java.lang.Object")) 
-                {
-                    String parentClass = extractSimpleName(parentFullName);
-                    relationList.add("[" + currentClass + "]^-["
-                                    + parentClass + "]");
-                }
-
-            } else if (line.startsWith("Implements:")) 
-            {
-                statusFlag = 1;
+                addRendered(cls, relations, render(cls, relations));
+            }
 
-            } else if (line.startsWith("Constructors:")) 
+            @Override
+            public String[] render(ClassModel cls, ClassRelations relations) 
             {
-                statusFlag = 2;
+                return new String[] {classBlock(cls, relations)};
+            }
 
-            } else if (line.startsWith("Methods:")) 
-            {
-                statusFlag = 3;
-                
-            } else if(line.startsWith("Fields:")) 
+            @Override
+            public void addRendered(ClassModel cls, ClassRelations relations, String[] block) throws IOException 
             {
-                statusFlag = 4;
+                relations.addTo(graph);
+                out.line(block[0]);
+                ToolMetrics.INSTANCE.membersRendered.add(cls.fields().size() + cls.constructors().size() + cls.methods().size());
+            }
 
-            } else if (line.contains("----")) 
+            @Override
+            public void addStub(ClassModel cls) throws IOException 
             {
-                if (insideClass) 
-                {
-                    result.add(buildYumlClassBlock(currentClass, attributesAndMethods));
-                    attributesAndMethods.clear();
-                    insideClass = false;
-                    statusFlag = 0;
-                }
-                continue;
+                out.line("[" + cls.simpleName() + "{bg:lightgray}]");
             }
 
-            switch (statusFlag) 
+            @Override
+            public void close() throws IOException 
             {
-                case 1: // Interfaces
-                {
-                    if(line.startsWith("Implements:")) break;
-
-                    String interfaceName = extractSimpleName(line.substring(1).trim());
-                    relationList.add("[" + currentClass + "]^.-[" + interfaceName + "]");
-                    break;
-                }
-                case 2: // Constructors
-                {   
-                    if(line.startsWith("Constructors")) break;
-                    line = line.replace("- private", "-");
-                    line = line.replace("- public", "+");
-                    line = line.replace("- protected", "#");
-                    attributesAndMethods.add(line.substring(2)); // remove "- " prefix
-                    break;
-                }
-                case 3: // Methods
+                for (int edge = 0; edge < graph.edgeCount(); edge++) 
                 {
-                    if(line.startsWith("Methods")) break;
-                    line = line.replace("- private", "-");
-                    line = line.replace("- public", "+");
-                    line = line.replace("- protected", "#");
-                    //line = line.replace("abstract", "{abstract}");
-                    attributesAndMethods.add(line.substring(2)); // remove "- " prefix
-                    break;
+                    out.line(relation(graph, edge));
                 }
-                case 4: // Fields
-                {
-                    if(line.startsWith("Fields")) break;
-                    line = line.replace("- private", "-");
-                    line = line.replace("- public", "+");
-                    line = line.replace("- protected", "#");
-
-                    StringTokenizer st = new StringTokenizer(line);
-                    String accMod = st.nextToken(" ");
-                    String theType = st.nextToken(" ");
-                    String theNewLine = st.nextToken(" ");
-
-                    // Detect composition relations for fields
-                    if(Character.isUpperCase(theType.charAt(0)))
-                    {
-                        if(theType.endsWith(">"))
-                        {
-                            int start = theType.indexOf("<");
-                            relationList.add("[" + currentClass + "]->[" + theType.substring(start+1, theType.length()-1) + "]");
-                        }
-                        else
-                        {
-                            relationList.add("[" + currentClass + "]->[" + theType + "]");
-                        }
-                    }
-                    String inverse = accMod + " " + theNewLine + " : " + theType;
-                    attributesAndMethods.add(inverse);
-                    break;
-                }
-
-                default:
-                    ;
+                ToolMetrics.INSTANCE.relationsEmitted.add(graph.edgeCount());
             }
-        }
+        };
+    }
 
-        if (insideClass) 
+    /** The whole [Name|member;member] block, built in the thread's line builder. */
+    private String classBlock(ClassModel cls, ClassRelations relations) 
+    {
+        StringBuilder sb = MemberModel.lineBuilder();
+        sb.append('[').append(relations.name);
+        if (cls.mark != null) 
         {
-            result.add(buildYumlClassBlock(currentClass, attributesAndMethods));
+            sb.append("{bg:").append(DiagramText.markColor(cls.mark)).append('}');
         }
+        char separator = '|';
 
-        result.addAll(relationList);
+        for (MemberModel field : cls.fields()) 
+        {
+            sb.append(separator).append(DiagramText.fieldAccess(field.modifiers)).append(' ')
+              .append(field.name).append(" : ").append(field.type);
+            DiagramText.appendMark(sb, field);
+            separator = ';';
+        }
 
-        return result;
-    }
+        for (MemberModel constructor : cls.constructors()) 
+        {
+            sb.append(separator).append(DiagramText.yumlPrefix(constructor.modifiers));
+            constructor.appendSignature(sb);
+            DiagramText.appendMark(sb, constructor);
+            separator = ';';
+        }
 
-    private String buildYumlClassBlock(String className, List<String> members) 
-    {
-        StringBuilder sb = new StringBuilder();
-        sb.append("[").append(className);
-        if (!members.isEmpty()) 
+        for (MemberModel method : cls.methods()) 
         {
-            sb.append("|");
-            for (int i = 0; i < members.size(); i++) 
-            {
-                sb.append(members.get(i));
-                if (i < members.size() - 1) 
-                {
-                    sb.append(";");
-                }
-            }
+            sb.append(separator).append(DiagramText.yumlPrefix(method.modifiers)).append(method.type).append(' ');
+            method.appendSignature(sb);
+            DiagramText.appendMark(sb, method);
+            separator = ';';
         }
-        sb.append("]");
-        return sb.toString();
+
+        return sb.append(']').toString();
     }
 
-    private String extractSimpleName(String fullName) 
+    private static String relation(RelationGraph graph, int edge) 
     {
-        int lastDot = fullName.lastIndexOf('.');
-        if (lastDot >= 0) {
-            return fullName.substring(lastDot + 1);
-        }
-        return fullName;
-    }
+        String source = "[" + graph.name(graph.source(edge)) + "]";
+        String target = "[" + graph.name(graph.target(edge)) + "]";
 
+        switch (graph.kind(edge)) 
+        {
+            case RelationGraph.EXTENDS:
+                return source + "^-" + target;
+            case RelationGraph.IMPLEMENTS:
+                return source + "^.-" + target;
+            default:
+                String multiplicity = graph.multiplicity(edge);
+                return source + (multiplicity != null ? "-" + multiplicity + ">" : "->") + target;
+        }
     }
+}
 
 
 class DiagramFormatterFactory 
@@ -481,6 +473,100 @@ class DiagramFormatterFactory
             throw new IllegalArgumentException("Unknown formatter type: " + type);
         }
     }
+
+    public static String fileExtension(String type) 
+    {
+        return "plantuml".equalsIgnoreCase(type) ? "puml" : type.toLowerCase();
+    }
+}
+
+/**
+ * Where the diagrams go: stdout or the --output file for a single format,
+ * otherwise one file per format in the output directory, named after the
+ * jar. All formats sit behind one DiagramWriter, so the classes are
+ * traversed once, and every target is written through a
+ * ChannelLineWriter.
+ */
+class DiagramOutput implements Closeable 
+{
+    private final List<ChannelLineWriter> files = new ArrayList<>();
+    private ChannelLineWriter stdout;
+    final DiagramWriter writer;
+
+    DiagramOutput(List<String> formats, File outputDir, String baseName) throws IOException 
+    {
+        this(formats, outputDir, null, baseName);
+    }
+
+    DiagramOutput(List<String> formats, File outputDir, File outputFile, String baseName) throws IOException 
+    {
+        if (formats.size() == 1 && outputDir == null) 
+        {
+            ChannelLineWriter out;
+            if (outputFile != null) 
+            {
+                out = ChannelLineWriter.toFile(outputFile);
+                files.add(out);
+            }
+            else 
+            {
+                out = ChannelLineWriter.stdout();
+                stdout = out;
+            }
+            writer = DiagramFormatterFactory.getFormatter(formats.get(0)).open(out);
+            return;
+        }
+
+        File dir = outputDir != null ? outputDir : new File(".");
+        Files.createDirectories(dir.toPath());
+
+        List<DiagramWriter> writers = new ArrayList<>();
+        try 
+        {
+            for (String format : formats) 
+            {
+                File file = new File(dir, baseName + "." + DiagramFormatterFactory.fileExtension(format));
+                ChannelLineWriter out = ChannelLineWriter.toFile(file);
+                files.add(out);
+                writers.add(DiagramFormatterFactory.getFormatter(format).open(out));
+            }
+
+        } catch (IOException e) 
+        {
+            close();
+            throw e;
+        }
+        writer = writers.size() == 1 ? writers.get(0) : new MultiDiagramWriter(writers);
+    }
+
+    @Override
+    public void close() throws IOException 
+    {
+        IOException failure = null;
+        if (stdout != null) 
+        {
+            try 
+            {
+                stdout.flush();
+
+            } catch (IOException e) 
+            {
+                failure = e;
+            }
+        }
+        for (ChannelLineWriter file : files) 
+        {
+            try 
+            {
+                file.close();
+
+            } catch (IOException e) 
+            {
+                if (failure == null) failure = e;
+            }
+        }
+        if (failure != null) throw failure;
+    }
 }
 
 
@@ -488,42 +574,303 @@ public class DiagramClassTool
 {
     public static void main(String[] args) 
     {
-        if (args.length != 1) 
+        ToolOptions options = ToolOptions.parse(args);
+
+        if (options == null || (options.paths.isEmpty() && options.serve < 0)) 
         {
-            System.out.println("Args: /the/path/idk.jar");
+            System.out.println(ToolOptions.USAGE);
             return;
         }
 
-        String jarPath = args[0];
-        File jarFile = new File(jarPath);
+        if (options.jmx) 
+        {
+            ToolMetrics.registerMBean();
+        }
 
-        if (!jarFile.exists()) 
+        if (options.serve >= 0) 
         {
-            System.out.println("Invalid JAR file path.");
+            try 
+            {
+                DiagramServer.serve(options);
+
+            } catch (IOException e) 
+            {
+                System.out.println("Could not start server: " + e.getMessage());
+            }
             return;
         }
 
-        JarInfoExtractor extractor = new JarInfoExtractor(jarFile);
-
-        extractor.extractInfo();
-        extractor.printExtracted();
+        if (options.diff) 
+        {
+            DiagramDiff.run(options);
+        }
+        else 
+        {
+            run(options);
+        }
 
-        List<String> classInfo = extractor.getInfo();
+        if (options.metricsFile != null) 
+        {
+            ToolMetrics.INSTANCE.writeJson(options.metricsFile);
+        }
+    }
 
+    /** The preprocessor the tool draws with: fields and methods hidden, excludes added to the built-in ignore list. */
+    static DiagramPreProcessor preProcessor(List<String> excludes) 
+    {
         List<String> ignoreClass = new ArrayList<>();
         ignoreClass.add("TextDisplay");
         ignoreClass.add("TemperatureSensor");
+        ignoreClass.addAll(excludes);
+
+        return new DiagramPreProcessor(true, true, false, ignoreClass);
+    }
+
+    static void run(ToolOptions options) 
+    {
+        List<File> classpath = options.classpath();
+        if (classpath == null) return;
+
+        List<String> excludes = options.excludeEntries();
+        if (excludes == null) return;
+
+        DiagramPreProcessor preProc = preProcessor(excludes);
+
+        String baseName = classpath.get(0).getName().replaceFirst("\\.jar$", "");
+
+        ExtractionCache cache = options.openCache();
+
+        // a neighbourhood, a partitioning or a simplification needs every class before it can place any
+        if (options.stream && options.focus.isEmpty() && !options.partition && !options.simplify()) 
+        {
+            streamDiagram(classpath, baseName, options, cache, preProc);
+            ToolOptions.printCacheStats(cache);
+            return;
+        }
+
+        // members are extracted as the diagram asks for them, so the
+        // extractor stays open until it has been written
+        try (JarInfoExtractor extractor = new JarInfoExtractor(classpath, options.bytecode)) 
+        {
+            extractor.useCache(cache);
+            extractor.includeInherited(options.inherited);
+            extractor.deferMembers(true);
+            extractor.leaveUnreadMembers();
+            ToolMetrics.Timer extractTimer = ToolMetrics.INSTANCE.time(ToolMetrics.EXTRACT);
+            try 
+            {
+                extractor.extractInfo(options.parallel);
+
+            } finally
+            {
+                extractTimer.stop();
+            }
+            // headers only: printing every member would read each one the diagram hides
+            if (!options.stream) 
+            {
+                extractor.printHeaders();
+            }
+
+            writeDiagram(extractor.getClasses(), baseName, options, preProc);
+
+        } catch (IOException e) 
+        {
+            System.out.println("Could not close jar: " + e.getMessage());
+        }
+
+        ToolOptions.printCacheStats(cache);
+    }
+
+    /** Writes the diagram of the extracted classes as options ask: whole, around --focus, partitioned or simplified. */
+    static void writeDiagram(List<ClassModel> classes, String baseName, ToolOptions options, DiagramPreProcessor preProc) 
+    {
+        if (!options.focus.isEmpty()) 
+        {
+            writeNeighbourhood(classes, baseName, options, preProc);
+            return;
+        }
+        if (options.simplify()) 
+        {
+            writeSimplified(classes, baseName, options, preProc);
+            return;
+        }
+
+        List<ClassModel> processedInfo;
+        ToolMetrics.Timer preprocessTimer = ToolMetrics.INSTANCE.time(ToolMetrics.PREPROCESS);
+        try 
+        {
+            processedInfo = preProc.process(classes);
+
+        } finally
+        {
+            preprocessTimer.stop();
+        }
 
-        DiagramPreProcessor preProc = new DiagramPreProcessor(classInfo, true, true, false, ignoreClass);
+        if (options.partition) 
+        {
+            writePartitions(processedInfo, baseName, options);
+            return;
+        }
 
-        List<String> processedInfo = preProc.ProcessInfo();
+        ToolMetrics.Timer formatTimer = ToolMetrics.INSTANCE.time(ToolMetrics.FORMAT);
+        try (DiagramOutput output = new DiagramOutput(options.formats, options.outputDir, options.outputFile, baseName)) 
+        {
+            output.writer.addAll(processedInfo, options.parallel);
+            output.writer.close();
 
-        DiagramFormatter formatter = DiagramFormatterFactory.getFormatter("plantuml");
-        List<String> output = formatter.format(processedInfo);
+        } catch (IOException e) 
+        {
+            System.out.println("Could not write diagram: " + e.getMessage());
 
-        for (String line : output) 
+        } finally
         {
-            System.out.println(line);
+            formatTimer.stop();
         }
     }  
+
+    static void writeNeighbourhood(List<ClassModel> classes, String baseName, ToolOptions options, DiagramPreProcessor preProc) 
+    {
+        Neighbourhood neighbourhood;
+        ToolMetrics.Timer preprocessTimer = ToolMetrics.INSTANCE.time(ToolMetrics.PREPROCESS);
+        try 
+        {
+            neighbourhood = new Neighbourhood(classes, preProc);
+            if (neighbourhood.expand(options.focus, options.depth) == 0) return;
+
+        } finally
+        {
+            preprocessTimer.stop();
+        }
+
+        ToolMetrics.Timer formatTimer = ToolMetrics.INSTANCE.time(ToolMetrics.FORMAT);
+        try (DiagramOutput output = new DiagramOutput(options.formats, options.outputDir, options.outputFile, baseName)) 
+        {
+            neighbourhood.write(output.writer);
+            output.writer.close();
+
+        } catch (IOException e) 
+        {
+            System.out.println("Could not write diagram: " + e.getMessage());
+
+        } finally
+        {
+            formatTimer.stop();
+        }
+    }
+
+    /** Writes the diagram cut down to the --max-nodes, --max-edges and --max-members budgets. */
+    static void writeSimplified(List<ClassModel> classes, String baseName, ToolOptions options, DiagramPreProcessor preProc) 
+    {
+        DiagramSimplifier simplifier = new DiagramSimplifier(options.maxNodes, options.maxEdges, options.maxMembers);
+        ToolMetrics.Timer preprocessTimer = ToolMetrics.INSTANCE.time(ToolMetrics.PREPROCESS);
+        try 
+        {
+            simplifier.simplify(classes, preProc);
+
+        } finally
+        {
+            preprocessTimer.stop();
+        }
+        System.err.println(simplifier.summary());
+
+        ToolMetrics.Timer formatTimer = ToolMetrics.INSTANCE.time(ToolMetrics.FORMAT);
+        try (DiagramOutput output = new DiagramOutput(options.formats, options.outputDir, options.outputFile, baseName)) 
+        {
+            simplifier.write(output.writer);
+            output.writer.close();
+
+        } catch (IOException e) 
+        {
+            System.out.println("Could not write diagram: " + e.getMessage());
+
+        } finally
+        {
+            formatTimer.stop();
+        }
+    }
+
+    /** Writes one diagram per package, or per --partition-max classes of one, plus an index. */
+    static void writePartitions(List<ClassModel> classes, String baseName, ToolOptions options) 
+    {
+        DiagramPartitioner partitioner = new DiagramPartitioner(options.partitionMax);
+        File dir = options.outputDir != null ? options.outputDir : new File(".");
+        ToolMetrics.Timer formatTimer = ToolMetrics.INSTANCE.time(ToolMetrics.FORMAT);
+        try 
+        {
+            Files.createDirectories(dir.toPath());
+            partitioner.write(partitioner.split(classes), options.formats, dir, baseName);
+
+        } catch (IOException e) 
+        {
+            System.out.println("Could not write diagram: " + e.getMessage());
+
+        } finally
+        {
+            formatTimer.stop();
+        }
+    }
+
+    /**
+     * Passes each class from the extractor through the preprocessor and
+     * straight into the formatters' writer. Only the relations are kept
+     * until the end, never the whole jar.
+     */
+    static void streamDiagram(List<File> classpath, String baseName, ToolOptions options, ExtractionCache cache, DiagramPreProcessor preProc) 
+    {
+        try (JarInfoExtractor extractor = new JarInfoExtractor(classpath, options.bytecode);
+             DiagramOutput output = new DiagramOutput(options.formats, options.outputDir, options.outputFile, baseName)) 
+        {
+            extractor.useCache(cache);
+            extractor.pushDown(preProc);
+            extractor.includeInherited(options.inherited);
+            DiagramWriter writer = output.writer;
+            ToolMetrics metrics = ToolMetrics.INSTANCE;
+
+            // the stages interleave per class, so each piece is timed on its own
+            // and extraction is charged whatever the sink did not take
+            LongAdder sinkNanos = new LongAdder();
+            long start = System.nanoTime();
+            extractor.extractInfo(options.parallel, cls -> 
+            {
+                long before = System.nanoTime();
+                ClassModel processed = preProc.process(cls);
+                long processedAt = System.nanoTime();
+                metrics.addNanos(ToolMetrics.PREPROCESS, processedAt - before);
+                if (processed == null) 
+                {
+                    sinkNanos.add(processedAt - before);
+                    return;
+                }
+                try 
+                {
+                    writer.add(processed);
+
+                } catch (IOException e) 
+                {
+                    throw new UncheckedIOException(e);
+
+                } finally 
+                {
+                    long after = System.nanoTime();
+                    metrics.addNanos(ToolMetrics.FORMAT, after - processedAt);
+                    sinkNanos.add(after - before);
+                }
+            });
+            metrics.addNanos(ToolMetrics.EXTRACT, Math.max(0, System.nanoTime() - start - sinkNanos.sum()));
+
+            ToolMetrics.Timer formatTimer = metrics.time(ToolMetrics.FORMAT);
+            try 
+            {
+                writer.close();
+
+            } finally
+            {
+                formatTimer.stop();
+            }
+
+        } catch (IOException | UncheckedIOException e) 
+        {
+            System.out.println("Could not write diagram: " + e.getMessage());
+        }
+    }
 }
@@ -0,0 +1,253 @@
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+/**
+ * Compares two versions of a classpath and draws what changed between
+ * them. Classes are matched by full name. A class whose class file has
+ * the same CRC-32 and size in both is unchanged without its members being
+ * read; any other class gets a member-level diff, which also finds it
+ * unchanged if only the order of its members moved.
+ *
+ * Added and removed classes are drawn as headers, modified ones with just
+ * the members that were added or removed, each marked; unchanged classes
+ * are left out. Relations come from the full class, the new version where
+ * there is one.
+ */
+class DiagramDiff
+{
+    static final String ADDED = "added";
+    static final String REMOVED = "removed";
+    static final String MODIFIED = "modified";
+
+    /** A class to draw, with the version its relations are taken from. */
+    static class Change
+    {
+        final ClassModel drawn;
+        final ClassModel full;
+
+        Change(ClassModel drawn, ClassModel full)
+        {
+            this.drawn = drawn;
+            this.full = full;
+        }
+    }
+
+    final List<Change> changes = new ArrayList<>();
+    int added;
+    int removed;
+    int modified;
+    int unchanged;
+
+    /** Matches the classes of both versions, keeping the new order and adding removed classes last. */
+    DiagramDiff(List<ClassModel> oldClasses, List<ClassModel> newClasses, ClassFilter filter)
+    {
+        Map<String, ClassModel> oldByName = new LinkedHashMap<>();
+        for (ClassModel cls : oldClasses)
+        {
+            if (!filter.excludes(cls)) oldByName.putIfAbsent(cls.name, cls);
+        }
+
+        for (ClassModel cls : newClasses)
+        {
+            if (filter.excludes(cls)) continue;
+
+            ClassModel old = oldByName.remove(cls.name);
+            if (old == null)
+            {
+                changes.add(new Change(header(cls, ADDED), cls));
+                added++;
+            }
+            else
+            {
+                ClassModel diff = sameClass(old, cls) ? null : memberDiff(old, cls);
+                if (diff == null)
+                {
+                    unchanged++;
+                    continue;
+                }
+                changes.add(new Change(diff, cls));
+                modified++;
+            }
+        }
+
+        for (ClassModel old : oldByName.values())
+        {
+            changes.add(new Change(header(old, REMOVED), old));
+            removed++;
+        }
+    }
+
+    /** Extracts both classpaths at once, diffs them and writes the diagram as the options ask. */
+    static void run(ToolOptions options)
+    {
+        List<File> oldPath = options.classpath(options.paths.get(0));
+        List<File> newPath = options.classpath(options.paths.get(1));
+        if (oldPath == null || newPath == null) return;
+
+        List<String> excludes = options.excludeEntries();
+        if (excludes == null) return;
+        ClassFilter filter = DiagramClassTool.preProcessor(excludes).filter;
+
+        ExtractionCache cache = options.openCache();
+        String baseName = newPath.get(0).getName().replaceFirst("\\.jar$", "") + "-diff";
+
+        JarInfoExtractor oldExtractor = new JarInfoExtractor(oldPath, options.bytecode);
+        JarInfoExtractor newExtractor = new JarInfoExtractor(newPath, options.bytecode);
+        try
+        {
+            DiagramDiff diff;
+            ToolMetrics.Timer extractTimer = ToolMetrics.INSTANCE.time(ToolMetrics.EXTRACT);
+            try
+            {
+                CompletableFuture<Void> oldDone = CompletableFuture.runAsync(() -> extract(oldExtractor, options, cache));
+                extract(newExtractor, options, cache);
+                oldDone.join();
+
+            } finally
+            {
+                extractTimer.stop();
+            }
+
+            ToolMetrics.Timer preprocessTimer = ToolMetrics.INSTANCE.time(ToolMetrics.PREPROCESS);
+            try
+            {
+                diff = new DiagramDiff(oldExtractor.getClasses(), newExtractor.getClasses(), filter);
+
+            } finally
+            {
+                preprocessTimer.stop();
+            }
+            System.err.println("Diff: " + diff.added + " added, " + diff.removed + " removed, "
+                               + diff.modified + " modified, " + diff.unchanged + " unchanged");
+
+            ToolMetrics.Timer formatTimer = ToolMetrics.INSTANCE.time(ToolMetrics.FORMAT);
+            try (DiagramOutput output = new DiagramOutput(options.formats, options.outputDir, options.outputFile, baseName))
+            {
+                diff.write(output.writer);
+                output.writer.close();
+
+            } finally
+            {
+                formatTimer.stop();
+            }
+
+        } catch (IOException | CompletionException e)
+        {
+            System.out.println("Could not write diagram: " + e.getMessage());
+
+        } finally
+        {
+            close(oldExtractor);
+            close(newExtractor);
+        }
+
+        ToolOptions.printCacheStats(cache);
+    }
+
+    void write(DiagramWriter writer) throws IOException
+    {
+        for (Change change : changes)
+        {
+            writer.add(change.drawn, new ClassRelations(change.full));
+        }
+    }
+
+    /**
+     * Unchanged if both class files have the same CRC-32 and size. Only
+     * the stamps are compared, so no members are loaded. A class with a
+     * stamp of 0, a directory class the extraction cache served, is never
+     * unchanged here, and memberDiff is then the only thing that tells
+     * whether it changed.
+     */
+    static boolean sameClass(ClassModel a, ClassModel b)
+    {
+        return a.stamp != 0 && a.stamp == b.stamp;
+    }
+
+    private static ClassModel header(ClassModel cls, String mark)
+    {
+        ClassModel header = new ClassModel(cls.kind, cls.name);
+        header.superName = cls.superName;
+        header.interfaces = cls.interfaces;
+        header.mark = mark;
+        return header;
+    }
+
+    /**
+     * The new header with the members only one version has, each marked
+     * with the side it is on; null if the two only differ in member order,
+     * as after a recompile that moved members around.
+     */
+    private static ClassModel memberDiff(ClassModel old, ClassModel cls)
+    {
+        ClassModel diff = header(cls, MODIFIED);
+        diff.fields = changedMembers(old.fields(), cls.fields());
+        diff.constructors = changedMembers(old.constructors(), cls.constructors());
+        diff.methods = changedMembers(old.methods(), cls.methods());
+
+        boolean sameHeader = old.kind == cls.kind && Objects.equals(old.superName, cls.superName)
+                             && Arrays.equals(old.interfaces, cls.interfaces);
+        if (sameHeader && diff.fields.isEmpty() && diff.constructors.isEmpty() && diff.methods.isEmpty())
+        {
+            return null;
+        }
+        return diff;
+    }
+
+    private static List<MemberModel> changedMembers(List<MemberModel> oldMembers, List<MemberModel> newMembers)
+    {
+        Set<String> oldLines = new HashSet<>();
+        for (MemberModel member : oldMembers)
+        {
+            oldLines.add(member.toString());
+        }
+        Set<String> newLines = new HashSet<>();
+        for (MemberModel member : newMembers)
+        {
+            newLines.add(member.toString());
+        }
+
+        List<MemberModel> changed = new ArrayList<>();
+        for (MemberModel member : newMembers)
+        {
+            if (!oldLines.contains(member.toString())) changed.add(member.marked(ADDED));
+        }
+        for (MemberModel member : oldMembers)
+        {
+            if (!newLines.contains(member.toString())) changed.add(member.marked(REMOVED));
+        }
+        return changed;
+    }
+
+    private static void extract(JarInfoExtractor extractor, ToolOptions options, ExtractionCache cache)
+    {
+        extractor.useCache(cache);
+        extractor.includeInherited(options.inherited);
+        extractor.deferMembers(true);
+        // both are closed only once the diagram is written
+        extractor.leaveUnreadMembers();
+        extractor.extractInfo(options.parallel);
+    }
+
+    private static void close(JarInfoExtractor extractor)
+    {
+        try
+        {
+            extractor.close();
+
+        } catch (IOException e)
+        {
+            System.out.println("Could not close jar: " + e.getMessage());
+        }
+    }
+}
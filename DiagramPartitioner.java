@@ -0,0 +1,170 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+/**
+ * Splits a diagram too large to lay out into one diagram per package,
+ * cutting packages with more than maxClasses classes into numbered parts.
+ * A relation to a class in another part draws that class as a stub, and
+ * an index file lists the parts and which others each one refers to.
+ * The parts are written in parallel, each to its own files.
+ */
+class DiagramPartitioner
+{
+    static class Partition
+    {
+        final String name;
+        final List<ClassModel> classes = new ArrayList<>();
+        final TreeSet<String> links = new TreeSet<>();
+
+        Partition(String name)
+        {
+            this.name = name;
+        }
+    }
+
+    private final int maxClasses;
+
+    /** maxClasses of 0 keeps each package whole. */
+    DiagramPartitioner(int maxClasses)
+    {
+        this.maxClasses = maxClasses;
+    }
+
+    /** Groups the classes by package in first-seen order, then caps each group. */
+    List<Partition> split(List<ClassModel> classes)
+    {
+        Map<String, List<ClassModel>> byPackage = new LinkedHashMap<>();
+        for (ClassModel cls : classes)
+        {
+            byPackage.computeIfAbsent(cls.packageName(), p -> new ArrayList<>()).add(cls);
+        }
+
+        List<Partition> partitions = new ArrayList<>();
+        for (Map.Entry<String, List<ClassModel>> group : byPackage.entrySet())
+        {
+            String name = group.getKey().isEmpty() ? "default" : group.getKey();
+            List<ClassModel> members = group.getValue();
+
+            if (maxClasses <= 0 || members.size() <= maxClasses)
+            {
+                Partition partition = new Partition(name);
+                partition.classes.addAll(members);
+                partitions.add(partition);
+                continue;
+            }
+
+            for (int start = 0, part = 1; start < members.size(); start += maxClasses, part++)
+            {
+                Partition partition = new Partition(name + "-" + part);
+                partition.classes.addAll(members.subList(start, Math.min(start + maxClasses, members.size())));
+                partitions.add(partition);
+            }
+        }
+        return partitions;
+    }
+
+    /**
+     * Writes every partition as baseName-partition.ext in dir, one file
+     * per format, followed by baseName-index.md.
+     */
+    void write(List<Partition> partitions, List<String> formats, File dir, String baseName) throws IOException
+    {
+        // simple name to the partition drawing the class, as relations only carry simple names
+        Map<String, Partition> home = new HashMap<>();
+        Map<String, ClassModel> headers = new HashMap<>();
+        for (Partition partition : partitions)
+        {
+            for (ClassModel cls : partition.classes)
+            {
+                home.putIfAbsent(cls.simpleName(), partition);
+                headers.putIfAbsent(cls.simpleName(), cls);
+            }
+        }
+
+        try
+        {
+            partitions.parallelStream().forEach(partition ->
+            {
+                try
+                {
+                    writePartition(partition, home, headers, formats, dir, baseName);
+
+                } catch (IOException e)
+                {
+                    throw new UncheckedIOException(e);
+                }
+            });
+
+        } catch (UncheckedIOException e)
+        {
+            throw e.getCause();
+        }
+
+        writeIndex(partitions, formats, dir, baseName);
+    }
+
+    private void writePartition(Partition partition, Map<String, Partition> home, Map<String, ClassModel> headers,
+                                List<String> formats, File dir, String baseName) throws IOException
+    {
+        TreeSet<String> stubs = new TreeSet<>();
+
+        try (DiagramOutput output = new DiagramOutput(formats, dir, baseName + "-" + partition.name))
+        {
+            for (ClassModel cls : partition.classes)
+            {
+                ClassRelations relations = new ClassRelations(cls);
+                output.writer.add(cls, relations);
+
+                if (relations.parent != null) stubs.add(relations.parent);
+                for (String name : relations.interfaceNames) stubs.add(name);
+                for (String name : relations.fieldTargets)
+                {
+                    if (name != null) stubs.add(name);
+                }
+            }
+
+            for (String name : stubs)
+            {
+                Partition other = home.get(name);
+                if (other == null || other == partition) continue;
+
+                output.writer.addStub(headers.get(name));
+                partition.links.add(other.name);
+            }
+            output.writer.close();
+        }
+    }
+
+    private void writeIndex(List<Partition> partitions, List<String> formats, File dir, String baseName) throws IOException
+    {
+        try (ChannelLineWriter out = ChannelLineWriter.toFile(new File(dir, baseName + "-index.md")))
+        {
+            out.line("# " + baseName);
+            out.line("");
+
+            for (Partition partition : partitions)
+            {
+                StringBuilder sb = new StringBuilder();
+                sb.append("- ").append(partition.name).append(" (").append(partition.classes.size()).append(" classes):");
+                for (String format : formats)
+                {
+                    String file = baseName + "-" + partition.name + "." + DiagramFormatterFactory.fileExtension(format);
+                    sb.append(" [").append(format).append("](").append(file).append(')');
+                }
+                out.line(sb.toString());
+
+                if (!partition.links.isEmpty())
+                {
+                    out.line("  - refers to: " + String.join(", ", partition.links));
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,358 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.stream.Stream;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Serves diagrams over HTTP on the loopback interface, so callers that
+ * redraw often pay JVM startup and extraction once instead of per diagram.
+ *
+ *   GET /diagram?jar=a.jar&jar=classes&format=yuml&exclude=com.acme.**&fields&methods
+ *   GET /metrics
+ *
+ * jar may be repeated and takes the same paths as the command line;
+ * format, exclude, focus, depth, bytecode and inherited mean what their
+ * -- options do, and fields and methods draw those members, which the
+ * command line always hides. Extracted classes are kept in an LRU cache
+ * keyed by each path with its modification time and size, so a rebuilt
+ * jar is extracted again while an unchanged one is answered from memory.
+ * With bytecode, members are only parsed once a request draws them.
+ * Jars are read unmapped, so one dropped from the cache is not kept
+ * mapped until the garbage collector gets to it.
+ *
+ * Requests run on virtual threads when the JVM has them and on a fixed
+ * pool otherwise.
+ */
+class DiagramServer
+{
+    private static final List<String> VALUE_PARAMS = List.of("format", "exclude", "focus", "depth");
+    private static final List<String> FLAG_PARAMS = List.of("bytecode", "inherited", "fields", "methods");
+
+    private final ToolOptions defaults;
+    private final ExtractionCache diskCache;
+    private final ModelCache models;
+
+    /**
+     * The extracted classes of whole classpaths, least recently used
+     * first. Concurrent requests for the same key wait for one extraction.
+     */
+    static class ModelCache
+    {
+        private final Map<String, FutureTask<List<ClassModel>>> models;
+        private long hits;
+        private long misses;
+
+        ModelCache(int maxModels)
+        {
+            models = new LinkedHashMap<>(16, 0.75f, true)
+            {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, FutureTask<List<ClassModel>>> eldest)
+                {
+                    return size() > maxModels;
+                }
+            };
+        }
+
+        /** Returns the classes for key, running extract if they are not cached. */
+        List<ClassModel> get(String key, Callable<List<ClassModel>> extract) throws IOException
+        {
+            FutureTask<List<ClassModel>> task;
+            boolean miss = false;
+            synchronized (this)
+            {
+                task = models.get(key);
+                if (task == null)
+                {
+                    task = new FutureTask<>(extract);
+                    models.put(key, task);
+                    miss = true;
+                    misses++;
+                }
+                else hits++;
+            }
+
+            if (miss) task.run();
+
+            try
+            {
+                return task.get();
+
+            } catch (ExecutionException e)
+            {
+                // a failed extraction is not cached, so the next request tries again
+                synchronized (this)
+                {
+                    models.remove(key, task);
+                }
+                Throwable cause = e.getCause();
+                throw cause instanceof IOException ? (IOException) cause : new IOException(cause);
+
+            } catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+        }
+
+        synchronized String stats()
+        {
+            return models.size() + " models, " + hits + " hits, " + misses + " misses";
+        }
+    }
+
+    /** defaults supplies the server-wide settings: --cache, --parallel and --serve-models. */
+    DiagramServer(ToolOptions defaults)
+    {
+        this.defaults = defaults;
+        this.diskCache = defaults.openCache();
+        this.models = new ModelCache(defaults.serveModels);
+    }
+
+    /** Starts serving on defaults.serve, or a free port if it is 0, and returns once listening. */
+    static void serve(ToolOptions defaults) throws IOException
+    {
+        DiagramServer diagrams = new DiagramServer(defaults);
+
+        HttpServer server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), defaults.serve), 0);
+        server.createContext("/diagram", diagrams::handleDiagram);
+        server.createContext("/metrics", diagrams::handleMetrics);
+        server.setExecutor(newExecutor());
+        server.start();
+
+        System.out.println("Serving diagrams on http://" + server.getAddress().getHostString() + ":"
+                           + server.getAddress().getPort() + "/diagram");
+    }
+
+    /** A virtual thread per request where the JVM has them, looked up reflectively as this builds for 17. */
+    static ExecutorService newExecutor()
+    {
+        try
+        {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+
+        } catch (ReflectiveOperationException | UnsupportedOperationException e)
+        {
+            return Executors.newFixedThreadPool(Math.max(4, Runtime.getRuntime().availableProcessors() * 2));
+        }
+    }
+
+    private void handleDiagram(HttpExchange exchange) throws IOException
+    {
+        try (exchange)
+        {
+            if (!exchange.getRequestMethod().equals("GET"))
+            {
+                respond(exchange, 405, "Only GET is supported");
+                return;
+            }
+
+            Map<String, List<String>> query = parseQuery(exchange.getRequestURI().getRawQuery());
+            ToolOptions options = requestOptions(query);
+            if (options == null || options.paths.isEmpty() || options.formats.size() != 1)
+            {
+                respond(exchange, 400, "Params: jar=path (repeatable) [format=plantuml|yuml] [exclude=entry] "
+                                       + "[focus=Class,...] [depth=n] [bytecode] [inherited] [fields] [methods]");
+                return;
+            }
+
+            List<File> classpath = options.classpath();
+            if (classpath == null)
+            {
+                respond(exchange, 404, "Invalid JAR file path.");
+                return;
+            }
+
+            List<ClassModel> classes = models.get(modelKey(classpath, options), () -> extract(classpath, options));
+
+            DiagramPreProcessor preProc = DiagramClassTool.preProcessor(options.excludes);
+            preProc.attributes = !query.containsKey("fields");
+            preProc.methods = !query.containsKey("methods");
+
+            StringBuilder diagram = new StringBuilder();
+            if (!render(classes, options, preProc, diagram))
+            {
+                respond(exchange, 404, "No focus class found in diagram");
+                return;
+            }
+            respond(exchange, 200, diagram.toString());
+
+        } catch (IOException | UncheckedIOException e)
+        {
+            System.err.println("Could not serve diagram: " + e.getMessage());
+            // once the headers are out, the client sees a cut-off body and all that is left is the log
+            if (exchange.getResponseCode() < 0)
+            {
+                respond(exchange, 500, "Could not write diagram: " + e.getMessage());
+            }
+        }
+    }
+
+    private void handleMetrics(HttpExchange exchange) throws IOException
+    {
+        try (exchange)
+        {
+            respond(exchange, 200, ToolMetrics.INSTANCE.toJson() + "\n" + models.stats() + "\n");
+        }
+    }
+
+    /**
+     * Turns the query into command-line arguments so ToolOptions checks
+     * them as it would on the command line. Returns null for a parameter
+     * the server does not take, such as anything that writes files.
+     */
+    private ToolOptions requestOptions(Map<String, List<String>> query)
+    {
+        List<String> args = new ArrayList<>();
+        for (Map.Entry<String, List<String>> param : query.entrySet())
+        {
+            String key = param.getKey();
+            for (String value : param.getValue())
+            {
+                if (key.equals("jar"))
+                {
+                    if (value.startsWith("--")) return null;
+                    args.add(value);
+                }
+                else if (VALUE_PARAMS.contains(key))
+                {
+                    args.add("--" + key);
+                    args.add(value);
+                }
+                else if (key.equals("bytecode") || key.equals("inherited")) args.add("--" + key);
+                else if (!FLAG_PARAMS.contains(key)) return null;
+            }
+        }
+
+        ToolOptions options = ToolOptions.parse(args.toArray(new String[0]));
+        if (options == null) return null;
+
+        options.parallel = defaults.parallel;
+        return options;
+    }
+
+    private List<ClassModel> extract(List<File> classpath, ToolOptions options) throws IOException
+    {
+        ToolMetrics.Timer extractTimer = ToolMetrics.INSTANCE.time(ToolMetrics.EXTRACT);
+        try (JarInfoExtractor extractor = new JarInfoExtractor(classpath, options.bytecode, false))
+        {
+            extractor.useCache(diskCache);
+            extractor.includeInherited(options.inherited);
+            extractor.deferMembers(true);
+            extractor.extractInfo(options.parallel);
+            return Collections.unmodifiableList(extractor.getClasses());
+
+        } finally
+        {
+            extractTimer.stop();
+        }
+    }
+
+    /** Draws the classes, or only the neighbourhood of options.focus; false if no focus class was found. */
+    private static boolean render(List<ClassModel> classes, ToolOptions options, DiagramPreProcessor preProc,
+                                  StringBuilder out) throws IOException
+    {
+        ToolMetrics.Timer formatTimer = ToolMetrics.INSTANCE.time(ToolMetrics.FORMAT);
+        try
+        {
+            DiagramWriter writer = DiagramFormatterFactory.getFormatter(options.formats.get(0))
+                                                          .open(line -> out.append(line).append('\n'));
+            if (!options.focus.isEmpty())
+            {
+                Neighbourhood neighbourhood = new Neighbourhood(classes, preProc);
+                if (neighbourhood.expand(options.focus, options.depth) == 0) return false;
+                neighbourhood.write(writer);
+            }
+            else
+            {
+                writer.addAll(preProc.process(classes), options.parallel);
+            }
+            writer.close();
+            return true;
+
+        } finally
+        {
+            formatTimer.stop();
+        }
+    }
+
+    /**
+     * The cache key: the engine, then every path with its modification
+     * time and size. A class directory is stamped with the newest time
+     * and total size of the files under it, so editing any class counts.
+     */
+    static String modelKey(List<File> classpath, ToolOptions options) throws IOException
+    {
+        StringBuilder key = new StringBuilder(options.bytecode ? "bytecode" : "reflect");
+        if (options.inherited) key.append("+inherited");
+
+        for (File file : classpath)
+        {
+            long modified = file.lastModified();
+            long size = file.length();
+            if (file.isDirectory())
+            {
+                size = 0;
+                try (Stream<Path> paths = Files.walk(file.toPath()))
+                {
+                    for (Path path : (Iterable<Path>) paths.filter(Files::isRegularFile)::iterator)
+                    {
+                        modified = Math.max(modified, Files.getLastModifiedTime(path).toMillis());
+                        size += Files.size(path);
+                    }
+                }
+            }
+            key.append('\n').append(file.getCanonicalPath()).append(':').append(modified).append(':').append(size);
+        }
+        return key.toString();
+    }
+
+    private static Map<String, List<String>> parseQuery(String rawQuery)
+    {
+        Map<String, List<String>> query = new LinkedHashMap<>();
+        if (rawQuery == null) return query;
+
+        for (String pair : rawQuery.split("&"))
+        {
+            if (pair.isEmpty()) continue;
+
+            int eq = pair.indexOf('=');
+            String key = URLDecoder.decode(eq < 0 ? pair : pair.substring(0, eq), StandardCharsets.UTF_8);
+            String value = eq < 0 ? "" : URLDecoder.decode(pair.substring(eq + 1), StandardCharsets.UTF_8);
+            query.computeIfAbsent(key, k -> new ArrayList<>()).add(value);
+        }
+        return query;
+    }
+
+    private static void respond(HttpExchange exchange, int status, String body) throws IOException
+    {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody())
+        {
+            out.write(bytes);
+        }
+    }
+}
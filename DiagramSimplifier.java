@@ -0,0 +1,501 @@
+import java.io.IOException;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Cuts a diagram down to a node and edge budget so layout stays fast.
+ * The steps run in order, each only if the diagram is still too big:
+ *
+ *   - edges a supertype in the diagram already implies are not drawn
+ *     again (always): an implemented interface reachable through another
+ *     supertype, and an association some supertype also has. An extends
+ *     edge is never implied this way, as a class has one superclass and
+ *     no interface leads to it;
+ *   - utility classes, with only static members and at most one relation,
+ *     are left out, least connected first;
+ *   - the classes with the most relations are kept and every other class
+ *     is collapsed into one node for its package, or for an enclosing
+ *     package when there are more packages than the budget allows;
+ *   - edges are dropped until the edge budget holds, associations before
+ *     inheritance and those between the least connected nodes first;
+ *   - members past the per-class cap are hidden, fields kept first.
+ *
+ * The cap counts the members that are drawn. The command line hides
+ * fields and methods, so there it only caps constructors.
+ *
+ * Degrees and edges come from the relations the formatters draw, that is
+ * from the classes as preprocessed. Nodes are the classes and package
+ * nodes drawn; types the diagram only points at do not count.
+ */
+class DiagramSimplifier
+{
+    static final String PACKAGE = "package";
+
+    private final int maxNodes;
+    private final int maxEdges;
+    private final int maxMembers;
+
+    private final List<ClassModel> drawn = new ArrayList<>();
+    private final List<ClassRelations> relations = new ArrayList<>();
+
+    int classesIn;
+    int edgesIn;
+    int redundant;
+    int pruned;
+    int collapsed;
+    int packages;
+    int edgesDropped;
+    int membersHidden;
+
+    /** A budget of 0 leaves that measure alone. */
+    DiagramSimplifier(int maxNodes, int maxEdges, int maxMembers)
+    {
+        this.maxNodes = maxNodes;
+        this.maxEdges = maxEdges;
+        this.maxMembers = maxMembers;
+    }
+
+    /** Preprocesses the extracted classes and simplifies them until the budgets hold, as far as they can. */
+    void simplify(List<ClassModel> extracted, DiagramPreProcessor preProc)
+    {
+        List<ClassModel> originals = new ArrayList<>();
+        for (ClassModel cls : extracted)
+        {
+            ClassModel processed = preProc.process(cls);
+            if (processed == null) continue;
+
+            originals.add(cls);
+            drawn.add(processed);
+            relations.add(new ClassRelations(processed));
+        }
+        classesIn = drawn.size();
+        edgesIn = graph().edgeCount();
+
+        dropRedundantEdges();
+        if (maxNodes > 0 && drawn.size() > maxNodes) pruneUtilities(originals);
+        if (maxNodes > 0 && drawn.size() > maxNodes) collapsePackages();
+        if (maxEdges > 0) dropEdges();
+        if (maxMembers > 0) capMembers();
+    }
+
+    void write(DiagramWriter writer) throws IOException
+    {
+        for (int i = 0; i < drawn.size(); i++)
+        {
+            writer.add(drawn.get(i), relations.get(i));
+        }
+    }
+
+    String summary()
+    {
+        return "Simplified: " + classesIn + " -> " + drawn.size() + " nodes, " + edgesIn + " -> " + graph().edgeCount()
+               + " edges; " + redundant + " redundant edges, " + pruned + " utility classes pruned, "
+               + collapsed + " classes collapsed into " + packages + " packages, " + edgesDropped + " edges dropped, "
+               + membersHidden + " members hidden";
+    }
+
+    private RelationGraph graph()
+    {
+        RelationGraph graph = new RelationGraph();
+        for (ClassRelations r : relations)
+        {
+            r.addTo(graph);
+        }
+        return graph;
+    }
+
+    private static int degree(RelationGraph graph, String name)
+    {
+        int node = graph.find(name);
+        return node < 0 ? 0 : graph.outDegree(node) + graph.inDegree(node);
+    }
+
+    /**
+     * Drops implements edges that another supertype of the class already
+     * leads to, and associations that one of its supertypes also draws.
+     */
+    private void dropRedundantEdges()
+    {
+        Map<String, ClassRelations> byName = new HashMap<>();
+        for (ClassRelations r : relations)
+        {
+            byName.putIfAbsent(r.name, r);
+        }
+
+        Map<String, Set<String>> ancestors = new HashMap<>();
+        for (int i = 0; i < relations.size(); i++)
+        {
+            ClassRelations r = relations.get(i);
+            if (r.interfaceNames.length == 0 && r.parent == null) continue;
+
+            List<String> supers = new ArrayList<>(Arrays.asList(r.interfaceNames));
+            if (r.parent != null) supers.add(r.parent);
+
+            Set<String> reached = new HashSet<>();
+            for (String s : supers)
+            {
+                reached.addAll(ancestors(s, byName, ancestors));
+            }
+
+            // what the supertypes in the diagram point at through their own fields
+            Set<String> inherited = new HashSet<>();
+            for (String s : supers)
+            {
+                addAssociations(byName.get(s), inherited);
+            }
+            for (String s : reached)
+            {
+                addAssociations(byName.get(s), inherited);
+            }
+
+            ClassRelations kept = r.mapped((kind, target) ->
+                kind == RelationGraph.IMPLEMENTS && reached.contains(target)
+                || kind == RelationGraph.ASSOCIATION && inherited.contains(target) ? null : target);
+            int dropped = edgeCount(r) - edgeCount(kept);
+            if (dropped > 0)
+            {
+                redundant += dropped;
+                relations.set(i, kept);
+            }
+        }
+    }
+
+    private static void addAssociations(ClassRelations r, Set<String> targets)
+    {
+        if (r == null) return;
+
+        for (String target : r.fieldTargets)
+        {
+            if (target != null) targets.add(target);
+        }
+    }
+
+    private static int edgeCount(ClassRelations r)
+    {
+        int count = r.interfaceNames.length;
+        for (String target : r.fieldTargets)
+        {
+            if (target != null) count++;
+        }
+        return count;
+    }
+
+    /** Every supertype above name that the diagram knows of, name itself excluded. */
+    private static Set<String> ancestors(String name, Map<String, ClassRelations> byName, Map<String, Set<String>> memo)
+    {
+        Set<String> found = memo.get(name);
+        if (found != null) return found;
+
+        found = new HashSet<>();
+        // seen before it is filled, so a cycle of supertypes ends here
+        memo.put(name, found);
+
+        ClassRelations r = byName.get(name);
+        if (r != null)
+        {
+            List<String> supers = new ArrayList<>(Arrays.asList(r.interfaceNames));
+            if (r.parent != null) supers.add(r.parent);
+            for (String s : supers)
+            {
+                found.add(s);
+                found.addAll(ancestors(s, byName, memo));
+            }
+        }
+        return found;
+    }
+
+    private static boolean isUtility(ClassModel cls)
+    {
+        if (cls.kind != ClassModel.CLASS || cls.memberCount(ClassModel.METHODS) == 0) return false;
+
+        for (MemberModel member : cls.fields())
+        {
+            if (!Modifier.isStatic(member.modifiers)) return false;
+        }
+        for (MemberModel member : cls.methods())
+        {
+            if (!Modifier.isStatic(member.modifiers)) return false;
+        }
+        return true;
+    }
+
+    private void pruneUtilities(List<ClassModel> originals)
+    {
+        RelationGraph graph = graph();
+        List<Integer> candidates = new ArrayList<>();
+        for (int i = 0; i < drawn.size(); i++)
+        {
+            if (degree(graph, relations.get(i).name) <= 1 && isUtility(originals.get(i))) candidates.add(i);
+        }
+        candidates.sort((a, b) -> Integer.compare(degree(graph, relations.get(a).name),
+                                                  degree(graph, relations.get(b).name)));
+
+        int excess = drawn.size() - maxNodes;
+        Set<String> removed = new HashSet<>();
+        boolean[] drop = new boolean[drawn.size()];
+        for (int i = 0; i < candidates.size() && i < excess; i++)
+        {
+            drop[candidates.get(i)] = true;
+            removed.add(relations.get(candidates.get(i)).name);
+            pruned++;
+        }
+        if (pruned == 0) return;
+
+        retain(drop, (kind, target) -> removed.contains(target) ? null : target);
+    }
+
+    /**
+     * Keeps as many of the best connected classes as leave room for one
+     * node per package of the rest, and collapses the rest into those.
+     */
+    private void collapsePackages()
+    {
+        RelationGraph graph = graph();
+        int count = drawn.size();
+
+        Integer[] ranked = new Integer[count];
+        int[] degrees = new int[count];
+        for (int i = 0; i < count; i++)
+        {
+            ranked[i] = i;
+            degrees[i] = degree(graph, relations.get(i).name);
+        }
+        Arrays.sort(ranked, (a, b) -> Integer.compare(degrees[b], degrees[a]));
+
+        // with too many packages even for one node each, they are merged into their parents
+        int depth = 0;
+        for (ClassModel cls : drawn)
+        {
+            depth = Math.max(depth, segments(cls.packageName()));
+        }
+        String[] packageOfClass = new String[count];
+        while (true)
+        {
+            Set<String> distinct = new HashSet<>();
+            for (int i = 0; i < count; i++)
+            {
+                packageOfClass[i] = packagePrefix(drawn.get(i).packageName(), depth);
+                distinct.add(packageOfClass[i]);
+            }
+            if (distinct.size() <= maxNodes || depth <= 1) break;
+            depth--;
+        }
+
+        // packagesAfter[k]: the package nodes needed if only the first k ranked classes are kept
+        int[] packagesAfter = new int[count + 1];
+        Set<String> seen = new HashSet<>();
+        for (int k = count - 1; k >= 0; k--)
+        {
+            seen.add(packageOfClass[ranked[k]]);
+            packagesAfter[k] = seen.size();
+        }
+        int keep = Math.min(count, maxNodes);
+        while (keep > 0 && keep + packagesAfter[keep] > maxNodes)
+        {
+            keep--;
+        }
+
+        Set<String> taken = new HashSet<>();
+        for (int node = 0; node < graph.nodeCount(); node++)
+        {
+            taken.add(graph.name(node));
+        }
+
+        boolean[] drop = new boolean[count];
+        Map<String, String> nodeOfPackage = new HashMap<>();
+        Map<String, String> packageOf = new HashMap<>();
+        Map<String, List<Integer>> members = new LinkedHashMap<>();
+        for (int k = keep; k < count; k++)
+        {
+            int i = ranked[k];
+            drop[i] = true;
+            String node = nodeOfPackage.computeIfAbsent(packageOfClass[i], p -> packageNode(p, taken));
+            packageOf.put(relations.get(i).name, node);
+            members.computeIfAbsent(node, n -> new ArrayList<>()).add(i);
+        }
+
+        ClassRelations.RelationMapper toPackage = (kind, target) -> packageOf.getOrDefault(target, target);
+
+        // a package node points at whatever its classes point at, itself excepted
+        List<ClassModel> nodes = new ArrayList<>();
+        List<ClassRelations> nodeRelations = new ArrayList<>();
+        for (Map.Entry<String, List<Integer>> entry : members.entrySet())
+        {
+            String node = entry.getKey();
+            Set<String> targets = new LinkedHashSet<>();
+            for (int i : entry.getValue())
+            {
+                relations.get(i).mapped((kind, target) ->
+                {
+                    String mapped = toPackage.map(kind, target);
+                    if (!mapped.equals(node)) targets.add(mapped);
+                    return null;
+                });
+            }
+
+            ClassModel packageModel = new ClassModel(ClassModel.CLASS, node);
+            packageModel.mark = PACKAGE;
+            nodes.add(packageModel);
+            nodeRelations.add(ClassRelations.associations(node, new ArrayList<>(targets)));
+        }
+
+        retain(drop, toPackage);
+        drawn.addAll(nodes);
+        relations.addAll(nodeRelations);
+        collapsed = count - keep;
+        packages = nodes.size();
+    }
+
+    private static int segments(String packageName)
+    {
+        return packageName.isEmpty() ? 0 : packageName.split("\\.").length;
+    }
+
+    /** The first depth segments of packageName. */
+    private static String packagePrefix(String packageName, int depth)
+    {
+        int end = -1;
+        for (int i = 0; i < depth; i++)
+        {
+            end = packageName.indexOf('.', end + 1);
+            if (end < 0) return packageName;
+        }
+        return packageName.substring(0, end);
+    }
+
+    /**
+     * One word per package, so PlantUML and yUML both take it as a class
+     * name, and one no node in taken goes by yet. A package often holds a
+     * class of its own name, so a clash gets a "_package" suffix.
+     */
+    private static String packageNode(String packageName, Set<String> taken)
+    {
+        String base = packageName.isEmpty() ? "default_package" : packageName.replace('.', '_');
+        String node = base;
+        if (taken.contains(node)) node = base + "_package";
+        for (int n = 2; taken.contains(node); n++)
+        {
+            node = base + "_package" + n;
+        }
+        taken.add(node);
+        return node;
+    }
+
+    /** Drops edges, cheapest first, until at most maxEdges are left. */
+    private void dropEdges()
+    {
+        RelationGraph graph = graph();
+        int excess = graph.edgeCount() - maxEdges;
+        if (excess <= 0) return;
+
+        int[] degrees = new int[graph.nodeCount()];
+        for (int node = 0; node < degrees.length; node++)
+        {
+            degrees[node] = graph.outDegree(node) + graph.inDegree(node);
+        }
+
+        Integer[] edges = new Integer[graph.edgeCount()];
+        for (int e = 0; e < edges.length; e++)
+        {
+            edges[e] = e;
+        }
+        // associations before implements before extends, then the least connected ends first
+        Arrays.sort(edges, (a, b) ->
+        {
+            int byKind = Integer.compare(graph.kind(b), graph.kind(a));
+            if (byKind != 0) return byKind;
+            return Integer.compare(degrees[graph.source(a)] + degrees[graph.target(a)],
+                                   degrees[graph.source(b)] + degrees[graph.target(b)]);
+        });
+
+        boolean[] dropped = new boolean[edges.length];
+        for (int i = 0; i < excess; i++)
+        {
+            dropped[edges[i]] = true;
+        }
+
+        for (int i = 0; i < relations.size(); i++)
+        {
+            int source = graph.find(relations.get(i).name);
+            relations.set(i, relations.get(i).mapped((kind, target) ->
+            {
+                int node = graph.find(target);
+                for (int j = 0; j < graph.outDegree(source); j++)
+                {
+                    int edge = graph.outEdge(source, j);
+                    if (graph.target(edge) == node && graph.kind(edge) == kind)
+                    {
+                        return dropped[edge] ? null : target;
+                    }
+                }
+                return target;
+            }));
+        }
+        edgesDropped = excess;
+    }
+
+    /**
+     * Hides the members past maxMembers, taking fields, then constructors,
+     * then methods. Sections are counted before they are read, so one the
+     * cap hides entirely is never read at all.
+     */
+    private void capMembers()
+    {
+        for (int i = 0; i < drawn.size(); i++)
+        {
+            ClassModel cls = drawn.get(i);
+            int total = cls.memberCount(ClassModel.FIELDS) + cls.memberCount(ClassModel.CONSTRUCTORS)
+                        + cls.memberCount(ClassModel.METHODS);
+            if (total <= maxMembers) continue;
+
+            ClassModel capped = new ClassModel(cls.kind, cls.name);
+            capped.superName = cls.superName;
+            capped.interfaces = cls.interfaces;
+            capped.mark = cls.mark;
+            capped.stamp = cls.stamp;
+
+            int room = maxMembers;
+            capped.fields = firstMembers(cls, ClassModel.FIELDS, room);
+            room -= capped.fields.size();
+            capped.constructors = firstMembers(cls, ClassModel.CONSTRUCTORS, room);
+            room -= capped.constructors.size();
+            capped.methods = firstMembers(cls, ClassModel.METHODS, room);
+
+            drawn.set(i, capped);
+            membersHidden += total - maxMembers;
+        }
+    }
+
+    private static List<MemberModel> firstMembers(ClassModel cls, int section, int room)
+    {
+        if (room <= 0) return new ArrayList<>();
+
+        List<MemberModel> members = cls.members(section);
+        return new ArrayList<>(members.subList(0, Math.min(room, members.size())));
+    }
+
+    /** Keeps the classes drop leaves and passes the relations of those kept through mapper. */
+    private void retain(boolean[] drop, ClassRelations.RelationMapper mapper)
+    {
+        List<ClassModel> keptClasses = new ArrayList<>();
+        List<ClassRelations> keptRelations = new ArrayList<>();
+        for (int i = 0; i < drawn.size(); i++)
+        {
+            if (drop[i]) continue;
+            keptClasses.add(drawn.get(i));
+            keptRelations.add(relations.get(i).mapped(mapper));
+        }
+        drawn.clear();
+        drawn.addAll(keptClasses);
+        relations.clear();
+        relations.addAll(keptRelations);
+    }
+}
@@ -0,0 +1,155 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * On-disk cache of extracted classes, keyed by jar entry name plus the
+ * CRC-32 and size from the central directory, so unchanged classes are not
+ * read again on the next run. Each class is stored as its text records.
+ * Files are touched on every hit and the least recently used ones are
+ * deleted once the directory grows past maxBytes.
+ */
+class ExtractionCache
+{
+    private final File dir;
+    private final long maxBytes;
+    private final AtomicLong totalBytes = new AtomicLong();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    ExtractionCache(File dir, long maxBytes) throws IOException
+    {
+        this.dir = dir;
+        this.maxBytes = maxBytes;
+
+        Files.createDirectories(dir.toPath());
+        for (File file : cacheFiles())
+        {
+            totalBytes.addAndGet(file.length());
+        }
+        evict();
+    }
+
+    long hits()
+    {
+        return hits.get();
+    }
+
+    long misses()
+    {
+        return misses.get();
+    }
+
+    /**
+     * Returns the cached class for the entry, or null on a miss. engine
+     * tells the reflective and bytecode results apart, since they differ.
+     */
+    ClassModel get(JarArchive.Entry entry, String engine, TypeNames names)
+    {
+        File file = fileFor(entry, engine);
+        try
+        {
+            List<String> lines = Files.readAllLines(file.toPath(), StandardCharsets.UTF_8);
+            if (lines.isEmpty() || !lines.get(0).equals(key(entry, engine)))
+            {
+                misses.incrementAndGet();
+                return null;
+            }
+
+            List<ClassModel> classes = ClassModel.parse(lines.subList(1, lines.size()), names);
+            if (classes.size() != 1)
+            {
+                misses.incrementAndGet();
+                return null;
+            }
+
+            file.setLastModified(System.currentTimeMillis());
+            hits.incrementAndGet();
+            return classes.get(0);
+
+        } catch (IOException e)
+        {
+            misses.incrementAndGet();
+            return null;
+        }
+    }
+
+    void put(JarArchive.Entry entry, String engine, ClassModel cls)
+    {
+        List<String> lines = new ArrayList<>();
+        lines.add(key(entry, engine));
+        cls.appendRecords(lines);
+
+        File file = fileFor(entry, engine);
+        try
+        {
+            File tmp = File.createTempFile("entry", ".tmp", dir);
+            Files.write(tmp.toPath(), lines, StandardCharsets.UTF_8);
+            long previous = file.length();
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+            if (totalBytes.addAndGet(file.length() - previous) > maxBytes)
+            {
+                evict();
+            }
+
+        } catch (IOException e)
+        {
+            // the cache only saves work, a failed write just means a miss next time
+        }
+    }
+
+    /** Deletes the least recently used files until the cache is back under 90% of its cap. */
+    private synchronized void evict()
+    {
+        if (totalBytes.get() <= maxBytes) return;
+
+        File[] files = cacheFiles();
+        long[] stamps = new long[files.length];
+        Integer[] order = new Integer[files.length];
+        for (int i = 0; i < files.length; i++)
+        {
+            stamps[i] = files[i].lastModified();
+            order[i] = i;
+        }
+        Arrays.sort(order, Comparator.comparingLong(i -> stamps[i]));
+
+        long target = maxBytes / 10 * 9;
+        for (int i : order)
+        {
+            if (totalBytes.get() <= target) break;
+
+            long length = files[i].length();
+            if (files[i].delete())
+            {
+                totalBytes.addAndGet(-length);
+            }
+        }
+    }
+
+    private File[] cacheFiles()
+    {
+        File[] files = dir.listFiles((d, name) -> name.endsWith(".rec"));
+        return files != null ? files : new File[0];
+    }
+
+    private static String key(JarArchive.Entry entry, String engine)
+    {
+        return engine + " " + Long.toHexString(entry.crc) + " " + entry.size + " " + entry.name;
+    }
+
+    private File fileFor(JarArchive.Entry entry, String engine)
+    {
+        // the full key is checked on read, so a hash collision is only a miss
+        String name = engine + "-" + Long.toHexString(entry.crc) + "-" + entry.size
+                    + "-" + Integer.toHexString(entry.name.hashCode()) + ".rec";
+        return new File(dir, name);
+    }
+}
@@ -0,0 +1,364 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Read-only view of a jar that parses the central directory up front.
+ * By default the file is mapped once and stored entries are handed out
+ * as slices of the mapping. A mapping is only released when it is
+ * garbage collected, so a long-running process can open the jar unmapped
+ * instead: then every read is a positional read of the channel, and
+ * close() leaves nothing of the file behind. Deflated entries are
+ * inflated with pooled Inflaters into pooled buffers, which callers hand
+ * back through release(). Safe to read from several threads at once.
+ */
+class JarArchive implements ClassArchive
+{
+    private static final int LOCAL_HEADER = 0x04034b50;
+    private static final int CENTRAL_HEADER = 0x02014b50;
+    private static final int END_HEADER = 0x06054b50;
+    private static final int ZIP64_END_HEADER = 0x06064b50;
+    private static final int ZIP64_LOCATOR = 0x07064b50;
+
+    // room for the end record, its longest comment and the zip64 locator before it
+    private static final int TAIL_SIZE = 22 + 0xFFFF + 20;
+    private static final int MIN_BUFFER = 16 * 1024;
+
+    static class Entry
+    {
+        final ClassArchive archive;
+        final String name;
+        final int method;
+        final long crc;
+        final long compressedSize;
+        final long size;
+        final long headerOffset;
+
+        Entry(ClassArchive archive, String name, int method, long crc, long compressedSize, long size, long headerOffset)
+        {
+            this.archive = archive;
+            this.name = name;
+            this.method = method;
+            this.crc = crc;
+            this.compressedSize = compressedSize;
+            this.size = size;
+            this.headerOffset = headerOffset;
+        }
+    }
+
+    private final FileChannel channel;
+    private final long length;
+    private final MappedByteBuffer map;
+    private final List<Entry> entries = new ArrayList<>();
+    private final Map<String, Entry> byName = new HashMap<>();
+    private final ConcurrentLinkedQueue<Inflater> inflaters = new ConcurrentLinkedQueue<>();
+    private final ConcurrentLinkedQueue<ByteBuffer> buffers = new ConcurrentLinkedQueue<>();
+
+    JarArchive(File file) throws IOException
+    {
+        this(file, true);
+    }
+
+    JarArchive(File file, boolean mapped) throws IOException
+    {
+        channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        try
+        {
+            length = channel.size();
+            if (mapped)
+            {
+                if (length > Integer.MAX_VALUE)
+                {
+                    throw new IOException("Archive too large to map: " + file);
+                }
+                map = channel.map(FileChannel.MapMode.READ_ONLY, 0, length);
+            }
+            else map = null;
+            readCentralDirectory();
+
+        } catch (IOException | RuntimeException e)
+        {
+            channel.close();
+            throw e;
+        }
+    }
+
+    @Override
+    public List<Entry> entries()
+    {
+        return Collections.unmodifiableList(entries);
+    }
+
+    @Override
+    public Entry getEntry(String name)
+    {
+        return byName.get(name);
+    }
+
+    @Override
+    public ByteBuffer read(Entry entry) throws IOException
+    {
+        ToolMetrics.INSTANCE.bytesRead.add(entry.size);
+
+        ByteBuffer header = region(entry.headerOffset, 30);
+        if (header.getInt(0) != LOCAL_HEADER)
+        {
+            throw new IOException("Bad local header for " + entry.name);
+        }
+        long dataStart = entry.headerOffset + 30 + (header.getShort(26) & 0xFFFF) + (header.getShort(28) & 0xFFFF);
+
+        if (entry.method == 0)
+        {
+            if (map != null) return region(dataStart, (int) entry.compressedSize);
+
+            ByteBuffer out = buffer((int) entry.size);
+            readFully(out, dataStart);
+            out.flip();
+            return out;
+        }
+        if (entry.method != 8)
+        {
+            throw new IOException("Unsupported compression method " + entry.method + " for " + entry.name);
+        }
+
+        ByteBuffer data = region(dataStart, (int) entry.compressedSize);
+        Inflater inflater = inflaters.poll();
+        if (inflater == null)
+        {
+            inflater = new Inflater(true);
+        }
+        try
+        {
+            ByteBuffer out = buffer((int) entry.size);
+            inflater.setInput(data);
+            while (out.hasRemaining() && !inflater.finished())
+            {
+                if (inflater.inflate(out) == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+                {
+                    throw new IOException("Truncated entry " + entry.name);
+                }
+            }
+            out.flip();
+            return out;
+
+        } catch (DataFormatException e)
+        {
+            throw new IOException("Corrupt entry " + entry.name, e);
+
+        } finally
+        {
+            inflater.reset();
+            inflaters.offer(inflater);
+        }
+    }
+
+    /** Takes back a buffer read() filled, unless it is a slice of the mapping. */
+    @Override
+    public void release(ByteBuffer buf)
+    {
+        if (!buf.isDirect()) buffers.offer(buf);
+    }
+
+    /** A pooled buffer limited to size; one too small for this entry is dropped for a bigger one. */
+    private ByteBuffer buffer(int size)
+    {
+        ByteBuffer buf = buffers.poll();
+        if (buf == null || buf.capacity() < size)
+        {
+            buf = ByteBuffer.allocate(Math.max(size, MIN_BUFFER));
+        }
+        buf.clear().limit(size);
+        return buf;
+    }
+
+    /** length bytes of the file from position, little-endian and positioned at zero. */
+    private ByteBuffer region(long position, int length) throws IOException
+    {
+        ByteBuffer region;
+        if (map != null)
+        {
+            region = map.duplicate();
+            region.position((int) position);
+            region.limit((int) position + length);
+            region = region.slice();
+        }
+        else
+        {
+            region = ByteBuffer.allocate(length);
+            readFully(region, position);
+            region.flip();
+        }
+        return region.order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    private void readFully(ByteBuffer buf, long position) throws IOException
+    {
+        while (buf.hasRemaining())
+        {
+            int n = channel.read(buf, position);
+            if (n < 0) throw new IOException("Unexpected end of archive");
+            position += n;
+        }
+    }
+
+    private void readCentralDirectory() throws IOException
+    {
+        long tailStart = Math.max(0, length - TAIL_SIZE);
+        ByteBuffer tail = region(tailStart, (int) (length - tailStart));
+
+        int end = -1;
+        int stop = Math.max(0, tail.limit() - 22 - 0xFFFF);
+        for (int i = tail.limit() - 22; i >= stop; i--)
+        {
+            if (tail.getInt(i) == END_HEADER)
+            {
+                end = i;
+                break;
+            }
+        }
+        if (end < 0)
+        {
+            throw new IOException("Not a zip archive");
+        }
+
+        long count = tail.getShort(end + 10) & 0xFFFF;
+        long size = tail.getInt(end + 12) & 0xFFFFFFFFL;
+        long offset = tail.getInt(end + 16) & 0xFFFFFFFFL;
+
+        if ((count == 0xFFFF || offset == 0xFFFFFFFFL) && end >= 20 && tail.getInt(end - 20) == ZIP64_LOCATOR)
+        {
+            ByteBuffer zip64End = region(tail.getLong(end - 20 + 8), 56);
+            if (zip64End.getInt(0) != ZIP64_END_HEADER)
+            {
+                throw new IOException("Bad zip64 end of central directory");
+            }
+            count = zip64End.getLong(32);
+            size = zip64End.getLong(40);
+            offset = zip64End.getLong(48);
+        }
+        if (size > Integer.MAX_VALUE || offset + size > length)
+        {
+            throw new IOException("Bad central directory");
+        }
+
+        ByteBuffer directory = region(offset, (int) size);
+        int pos = 0;
+        for (long i = 0; i < count; i++)
+        {
+            if (directory.getInt(pos) != CENTRAL_HEADER)
+            {
+                throw new IOException("Bad central directory header");
+            }
+            int method = directory.getShort(pos + 10) & 0xFFFF;
+            long crc = directory.getInt(pos + 16) & 0xFFFFFFFFL;
+            long compressedSize = directory.getInt(pos + 20) & 0xFFFFFFFFL;
+            long entrySize = directory.getInt(pos + 24) & 0xFFFFFFFFL;
+            int nameLength = directory.getShort(pos + 28) & 0xFFFF;
+            int extraLength = directory.getShort(pos + 30) & 0xFFFF;
+            int commentLength = directory.getShort(pos + 32) & 0xFFFF;
+            long headerOffset = directory.getInt(pos + 42) & 0xFFFFFFFFL;
+
+            byte[] nameBytes = new byte[nameLength];
+            directory.get(pos + 46, nameBytes);
+            String name = new String(nameBytes, StandardCharsets.UTF_8);
+
+            // zip64 extra field, holding whichever of the values overflowed
+            int extra = pos + 46 + nameLength;
+            int extraEnd = extra + extraLength;
+            while (extra + 4 <= extraEnd)
+            {
+                int id = directory.getShort(extra) & 0xFFFF;
+                int len = directory.getShort(extra + 2) & 0xFFFF;
+                if (id == 0x0001)
+                {
+                    int p = extra + 4;
+                    if (entrySize == 0xFFFFFFFFL) { entrySize = directory.getLong(p); p += 8; }
+                    if (compressedSize == 0xFFFFFFFFL) { compressedSize = directory.getLong(p); p += 8; }
+                    if (headerOffset == 0xFFFFFFFFL) { headerOffset = directory.getLong(p); }
+                }
+                extra += 4 + len;
+            }
+
+            Entry entry = new Entry(this, name, method, crc, compressedSize, entrySize, headerOffset);
+            entries.add(entry);
+            byName.putIfAbsent(name, entry);
+
+            pos += 46 + nameLength + extraLength + commentLength;
+        }
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        Inflater inflater;
+        while ((inflater = inflaters.poll()) != null)
+        {
+            inflater.end();
+        }
+        buffers.clear();
+        channel.close();
+    }
+}
+
+/**
+ * Defines classes from a list of archives, searched in classpath order,
+ * so the reflective path reads each entry once from the shared mapping
+ * instead of reopening the jar, and a class can extend one from another
+ * archive.
+ */
+class ArchiveClassLoader extends ClassLoader
+{
+    static
+    {
+        registerAsParallelCapable();
+    }
+
+    private final List<ClassArchive> archives;
+
+    ArchiveClassLoader(List<ClassArchive> archives)
+    {
+        super(ClassLoader.getSystemClassLoader());
+        this.archives = archives;
+    }
+
+    @Override
+    protected Class<?> findClass(String name) throws ClassNotFoundException
+    {
+        String entryName = name.replace('.', '/') + ".class";
+        JarArchive.Entry entry = null;
+        for (ClassArchive archive : archives)
+        {
+            entry = archive.getEntry(entryName);
+            if (entry != null) break;
+        }
+        if (entry == null)
+        {
+            throw new ClassNotFoundException(name);
+        }
+        try
+        {
+            // defineClass copies the bytes, so the buffer can go straight back
+            ByteBuffer bytes = entry.archive.read(entry);
+            Class<?> cls = defineClass(name, bytes, null);
+            entry.archive.release(bytes);
+            return cls;
+
+        } catch (IOException e)
+        {
+            throw new ClassNotFoundException(name, e);
+        }
+    }
+}
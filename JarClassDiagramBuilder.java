@@ -1,66 +1,400 @@
 import java.io.File;
+import java.io.IOException;
+import java.lang.invoke.MethodType;
 import java.lang.reflect.*;
-import java.net.URL;
-import java.net.URLClassLoader;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
-import java.util.Enumeration;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
-import java.util.jar.JarEntry;
-import java.util.jar.JarFile;
-
-class JarInfoExtractor
+import java.util.Map;
+import java.util.Objects;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+
+class JarInfoExtractor implements AutoCloseable
 {
-    Enumeration<JarEntry> jarEntries;
-    JarFile jar;
+    List<ClassArchive> archives = new ArrayList<>();
     ClassLoader classLoader;
-
-    List<String> ClassData = new ArrayList<>();
+    boolean bytecode;
+    boolean inherited;
+    ExtractionCache cache;
+    ClassFilter filter = ClassFilter.NONE;
+    boolean withFields = true;
+    boolean withMethods = true;
+    boolean lazyMembers;
+    boolean loadOnClose = true;
+    Queue<ClassModel> deferred = new ConcurrentLinkedQueue<>();
+
+    TypeNames names = new TypeNames();
+    Map<Class<?>, String> simpleNameCache = new ConcurrentHashMap<>();
+    List<ClassModel> classes = new ArrayList<>();
 
     public JarInfoExtractor(File jarFile) 
     {
-        try 
+        this(jarFile, false);
+    }
+
+    /**
+     * With bytecode set, classes are read from their class-file bytes by
+     * ClassFileReader instead of being loaded and reflected on.
+     */
+    public JarInfoExtractor(File jarFile, boolean bytecode) 
+    {
+        this(List.of(jarFile), bytecode);
+    }
+
+    /**
+     * Reads a whole classpath of jars and class directories, opened
+     * concurrently. A class found in more than one is taken from the
+     * first, as a class loader would, and one class loader over all of
+     * them lets the reflective path load classes whose supertypes live in
+     * another archive.
+     */
+    public JarInfoExtractor(List<File> classpath, boolean bytecode) 
+    {
+        this(classpath, bytecode, true);
+    }
+
+    /**
+     * With mapped unset jars are read through their channels rather than
+     * mapped, so a long-running caller holds nothing of them once this is
+     * closed.
+     */
+    public JarInfoExtractor(List<File> classpath, boolean bytecode, boolean mapped) 
+    {
+        this.bytecode = bytecode;
+
+        // a single jar is opened on this thread, sparing a short run the fork-join pool's startup
+        (classpath.size() > 1 ? classpath.parallelStream() : classpath.stream())
+                 .map(file -> 
+                 {
+                     try 
+                     {
+                         return ClassArchive.open(file, mapped);
+
+                     } catch (IOException e) 
+                     {
+                         System.out.println("Could not open jar: " + file);
+                         return null;
+                     }
+                 })
+                 .filter(Objects::nonNull)
+                 .forEachOrdered(archives::add);
+
+        if (!bytecode && !archives.isEmpty())
+        {
+            this.classLoader = new ArchiveClassLoader(archives);
+        }
+    }
+
+    /**
+     * Adds the public methods a class inherits to its own, as
+     * Class.getMethods() reports them. Only the reflective path can
+     * see supertypes outside the jar, so the bytecode path ignores it.
+     */
+    void includeInherited(boolean inherited)
+    {
+        this.inherited = inherited;
+    }
+
+    /** Looks classes up in cache before extracting them, and stores what it extracts. */
+    void useCache(ExtractionCache cache)
+    {
+        this.cache = cache;
+    }
+
+    /**
+     * Applies the preprocessor's ignore list and member switches while
+     * extracting: classes excluded by name are never read, the rest are
+     * dropped straight after their header, and the member sections the
+     * preprocessor would strip are not extracted at all.
+     */
+    void pushDown(DiagramPreProcessor preProc)
+    {
+        this.filter = preProc.filter;
+        this.withFields = !preProc.attributes;
+        this.withMethods = !preProc.methods;
+    }
+
+    /**
+     * Extracts only class headers up front and leaves each member section
+     * to be read the first time something asks the model for it. The
+     * bytecode path keeps the class bytes for that; the reflective path
+     * needs the class loader, so close() loads whatever it still owes.
+     * Classes stored in the cache are always extracted in full.
+     */
+    void deferMembers(boolean lazyMembers)
+    {
+        this.lazyMembers = lazyMembers;
+    }
+
+    /**
+     * For a caller done with the models by the time this is closed:
+     * close() then leaves the members nothing asked for unread instead of
+     * loading them, and the models must not be asked for them afterwards.
+     */
+    void leaveUnreadMembers()
+    {
+        this.loadOnClose = false;
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        ClassModel cls;
+        while ((cls = deferred.poll()) != null) 
+        {
+            if (loadOnClose) cls.loadMembers();
+        }
+
+        IOException failure = null;
+        for (ClassArchive archive : archives) 
         {
-            JarFile jar = new JarFile(jarFile);
-            URL url = jarFile.toURI().toURL();
-            this.classLoader = new URLClassLoader(new URL[]{url});
+            try 
+            {
+                archive.close();
 
-            this.jarEntries = jar.entries();
+            } catch (IOException e) 
+            {
+                if (failure == null) failure = e;
+            }
+        }
+        if (failure != null) throw failure;
+    }
 
-        } catch (Exception e) {}   
+    List<ClassModel> getClasses()
+    {
+        return classes;
     }
 
+    /** The extracted classes as Class:/Extends:/.../---- text records. */
     List<String> getInfo()
     {
-        return ClassData;
+        return ClassModel.toRecords(classes);
     }
 
     void extractInfo()
     {
-        while (jarEntries.hasMoreElements()) 
-        {
-            JarEntry entry = jarEntries.nextElement();
+        extractInfo(false);
+    }
+
+    /**
+     * With parallel set, class entries are extracted concurrently on the
+     * common fork-join pool. Each entry builds its own ClassModel and the
+     * models are collected in jar entry order, and the reflective path
+     * puts members back into class-file order, so the result is the same
+     * as a sequential run.
+     */
+    void extractInfo(boolean parallel)
+    {
+        extractInfo(parallel, classes::add);
+    }
 
-            if (entry.getName().endsWith(".class")) 
+    /**
+     * Hands each class to sink in jar entry order instead of keeping it,
+     * so a streaming caller never holds more than the classes in flight.
+     * With several archives they follow one another in classpath order,
+     * and the parallel path works on all of them at once.
+     */
+    void extractInfo(boolean parallel, Consumer<ClassModel> sink)
+    {
+        Set<String> seen = new HashSet<>();
+        List<JarArchive.Entry> classEntries = new ArrayList<>();
+        int scanned = 0;
+        for (ClassArchive archive : archives) 
+        {
+            for (JarArchive.Entry entry : archive.entries()) 
             {
-                String className = entry.getName().replace("/", ".").replace(".class", "");
-                try 
-                {
-                    Class<?> cls = classLoader.loadClass(className);
-                    extractClassInfo(cls);
+                if (!entry.name.endsWith(".class")) continue;
 
-                } catch (ClassNotFoundException  e) 
+                scanned++;
+                if (seen.add(entry.name) && !filter.excludesName(className(entry))) 
                 {
-                    System.out.println("Could not load class: " + className);
+                    classEntries.add(entry);
                 }
             }
         }
+        ToolMetrics.INSTANCE.classesScanned.add(scanned);
+
+        if (!parallel)
+        {
+            for (JarArchive.Entry entry : classEntries) 
+            {
+                ClassModel cls = extractEntry(entry);
+                if (cls != null) sink.accept(cls);
+            }
+            return;
+        }
+
+        classEntries.parallelStream()
+                    .map(this::extractEntry)
+                    .filter(Objects::nonNull)
+                    .forEachOrdered(sink);
+    }
+
+    ClassModel extractEntry(JarArchive.Entry entry)
+    {
+        ClassModel cls = extractCached(entry);
+        if (cls != null)
+        {
+            ToolMetrics.INSTANCE.classesLoaded.increment();
+            if (entry.archive instanceof JarArchive) 
+            {
+                cls.stamp = entry.size << 32 | entry.crc;
+            }
+        }
+        return cls;
+    }
+
+    private ClassModel extractCached(JarArchive.Entry entry)
+    {
+        if (cache == null)
+        {
+            return extractUncached(entry);
+        }
+
+        String engine = bytecode ? "bytecode" : inherited ? "reflect-inherited" : "reflect";
+        if (!withFields) engine += "-nofields";
+        if (!withMethods) engine += "-nomethods";
+        ClassModel cls = cache.get(entry, engine, names);
+        if (cls != null)
+        {
+            // a miss reads the kind from the class-file header, a hit has to leave out the same classes
+            return filter.excludes(cls) ? null : cls;
+        }
+
+        cls = extractUncached(entry);
+        if (cls != null) cache.put(entry, engine, cls);
+        return cls;
+    }
+
+    ClassModel extractUncached(JarArchive.Entry entry)
+    {
+        String className = className(entry);
+        if (bytecode)
+        {
+            return readClassInfo(entry, className);
+        }
+        if (filter.mayExcludeByKind(className) && !wantedKind(entry, className))
+        {
+            return null;
+        }
+        try 
+        {
+            Class<?> cls = classLoader.loadClass(className);
+            ClassModel model = extractClassInfo(cls, entry);
+            if (!(entry.archive instanceof JarArchive)) 
+            {
+                model.stamp = fileStamp(entry);
+            }
+            return model;
+
+        } catch (ClassNotFoundException  e) 
+        {
+            ToolMetrics.INSTANCE.classesFailed.increment();
+            System.out.println("Could not load class: " + className);
+        }
+        return null;
+    }
+
+    private static String className(JarArchive.Entry entry)
+    {
+        return entry.name.replace("/", ".").replace(".class", "");
+    }
+
+    /** Checks the filter against the class-file header, so excluded classes are never defined. */
+    private boolean wantedKind(JarArchive.Entry entry, String className)
+    {
+        try 
+        {
+            ByteBuffer bytes = entry.archive.read(entry);
+            int kind = new ClassFileReader(bytes, names).readKind();
+            entry.archive.release(bytes);
+            return kind < 0 || !filter.excludes(kind, className);
+
+        } catch (Exception e) 
+        {
+            // let loadClass report it
+            return true;
+        }
+    }
+
+    ClassModel readClassInfo(JarArchive.Entry entry, String className)
+    {
+        try 
+        {
+            ByteBuffer bytes = entry.archive.read(entry);
+            ClassModel cls = new ClassFileReader(bytes, names).read(filter, withFields, withMethods, lazyMembers);
+            if (cls != null && !(entry.archive instanceof JarArchive)) 
+            {
+                cls.stamp = fileStamp(bytes);
+            }
+            // a lazily read class keeps its bytes until its members are loaded
+            if (!lazyMembers || cls == null) entry.archive.release(bytes);
+            return cls;
+
+        } catch (Exception e) 
+        {
+            ToolMetrics.INSTANCE.classesFailed.increment();
+            System.out.println("Could not read class: " + className);
+        }
+        return null;
     }
 
     void printExtracted()
     {
-        for (String string : ClassData) 
+        ChannelLineWriter out = ChannelLineWriter.stdout();
+        try 
+        {
+            printExtracted(out);
+            out.flush();
+
+        } catch (IOException e) 
+        {
+            System.out.println("Could not write classes: " + e.getMessage());
+        }
+    }
+
+    /** Writes the Class:/Extends:/.../---- text of every extracted class into out. */
+    void printExtracted(Appendable out) throws IOException
+    {
+        StringBuilder sb = new StringBuilder();
+        for (ClassModel cls : classes) 
         {
-            System.out.println(string);
+            sb.setLength(0);
+            cls.appendText(sb);
+            out.append(sb);
+        }
+    }
+
+    /**
+     * As printExtracted(), but only the Class:, Extends: and Implements:
+     * lines of each record, so deferred members stay unread.
+     */
+    void printHeaders()
+    {
+        ChannelLineWriter out = ChannelLineWriter.stdout();
+        try 
+        {
+            StringBuilder sb = new StringBuilder();
+            for (ClassModel cls : classes) 
+            {
+                sb.setLength(0);
+                cls.appendHeaderText(sb);
+                out.append(sb.append("----------------------------------------------------\n\n"));
+            }
+            out.flush();
+
+        } catch (IOException e) 
+        {
+            System.out.println("Could not write classes: " + e.getMessage());
         }
     }
 
@@ -104,16 +438,16 @@ class JarInfoExtractor
         Field[] fset1 = cls.getDeclaredFields();
         Field[] fset2 = cls.getFields();
 
-        ArrayList<Field> allFields = new ArrayList();
+        Set<Field> allFields = new LinkedHashSet<>();
 
         for(Field f : fset1)
         {
-            if(!allFields.contains(f)) allFields.add(f);
+            allFields.add(f);
         }
 
         for(Field f : fset2)
         {
-            if(!allFields.contains(f)) allFields.add(f);
+            allFields.add(f);
         }
 
         
@@ -131,15 +465,15 @@ class JarInfoExtractor
         Constructor<?>[] cset1 = cls.getDeclaredConstructors();
         Constructor<?>[] cset2 = cls.getConstructors();
         
-        ArrayList<Constructor<?>> allConstructors = new ArrayList<>();
+        Set<Constructor<?>> allConstructors = new LinkedHashSet<>();
         
         for (Constructor<?> c : cset1) 
         {
-            if (!allConstructors.contains(c)) allConstructors.add(c);
+            allConstructors.add(c);
         }
         for (Constructor<?> c : cset2) 
         {
-            if (!allConstructors.contains(c)) allConstructors.add(c);
+            allConstructors.add(c);
         }
         
         if (allConstructors.size() > 0) 
@@ -161,16 +495,16 @@ class JarInfoExtractor
         Method[] set1 = cls.getDeclaredMethods();
         Method[] set2 = cls.getMethods();
 
-        ArrayList<Method> allMethods = new ArrayList<>();
+        Set<Method> allMethods = new LinkedHashSet<>();
 
         for(Method m : set1)
         {
-           if(!allMethods.contains(m)) allMethods.add(m);
+           allMethods.add(m);
         }
 
         for(Method m : set2)
         {
-            if(!allMethods.contains(m)) allMethods.add(m);
+            allMethods.add(m);
         }
 
         if (allMethods.size() > 0) 
@@ -191,145 +525,284 @@ class JarInfoExtractor
         System.out.println("----------------------------------------------------\n");
     }
 
-    void extractClassInfo(Class<?> cls) 
+    ClassModel extractClassInfo(Class<?> cls, JarArchive.Entry entry) 
     {
         //System.out.println("-----------------------------------------------------");
 
+        ClassModel out;
         if(cls.isAnnotation())
         {
-            ClassData.add("Annotation: " + cls.getName());
+            out = new ClassModel(ClassModel.ANNOTATION, names.intern(cls.getName()));
         }
         else
         {
             if(cls.isInterface())
             {
-                ClassData.add("Interface: " + cls.getName());
+                out = new ClassModel(ClassModel.INTERFACE, names.intern(cls.getName()));
             }
             else
             {
-                ClassData.add("Class: " + cls.getName());
+                out = new ClassModel(ClassModel.CLASS, names.intern(cls.getName()));
             }
         }
 
         if (cls.getSuperclass() != null) 
         {
-            ClassData.add("Extends: " + cls.getSuperclass().getName());
+            out.superName = names.intern(cls.getSuperclass().getName());
         }
 
-        //ClassData.add("Package: " + cls.getPackageName());
+        //out.add("Package: " + cls.getPackageName());
 
         Class<?>[] interfaces = cls.getInterfaces();
         if (interfaces.length > 0) 
         {
-            ClassData.add("Implements:");
-            for (Class<?> theInterface : interfaces) 
+            out.interfaces = new String[interfaces.length];
+            for (int i = 0; i < interfaces.length; i++) 
             {
-                ClassData.add("  - " + theInterface.getName());
+                out.interfaces[i] = names.intern(interfaces[i].getName());
             }
         }
 
-        Field[] fset1 = cls.getDeclaredFields();
-        Field[] fset2 = cls.getFields();
-
-        ArrayList<Field> allFields = new ArrayList();
+        int sections = ClassModel.CONSTRUCTORS | (withFields ? ClassModel.FIELDS : 0)
+                       | (withMethods ? ClassModel.METHODS : 0);
+        if (lazyMembers) 
+        {
+            out.deferMembers(sections, new ClassModel.MemberLoader()
+            {
+                @Override
+                public void load(ClassModel model, int section)
+                {
+                    extractMembers(cls, entry, model, section);
+                }
 
-        for(Field f : fset1)
+                @Override
+                public int count(ClassModel model, int section)
+                {
+                    return countMembers(entry, section);
+                }
+            });
+            deferred.add(out);
+        }
+        else 
         {
-            if(!allFields.contains(f)) allFields.add(f);
+            extractMembers(cls, entry, out, sections);
         }
+        return out;
+    }
 
-        for(Field f : fset2)
+    /** Adds the member sections in the sections mask of cls, read from entry, to out. */
+    private void extractMembers(Class<?> cls, JarArchive.Entry entry, ClassModel out, int sections)
+    {
+        ToolMetrics.INSTANCE.memberSectionsRead.add(Integer.bitCount(sections));
+        Map<String, Integer> order = (sections & (ClassModel.CONSTRUCTORS | ClassModel.METHODS)) != 0 ? methodOrder(entry) : null;
+
+        if ((sections & ClassModel.FIELDS) != 0)
         {
-            if(!allFields.contains(f)) allFields.add(f);
-        }
+            Field[] fset1 = cls.getDeclaredFields();
+            Field[] fset2 = cls.getFields();
+
+            Set<Field> allFields = new LinkedHashSet<>();
+
+            for(Field f : fset1)
+            {
+                allFields.add(f);
+            }
+
+            for(Field f : fset2)
+            {
+                allFields.add(f);
+            }
 
         
-        if (allFields.size() > 0) 
-        {
-            ClassData.add("Fields:");
             for (Field field : allFields) 
             {
 
-                int index = field.getGenericType().getTypeName().lastIndexOf('.') + 1;
-                String fieldName;
-                if(index != -1) { fieldName= field.getGenericType().getTypeName().substring(index);}
-                else fieldName = field.getName();
-                
-                ClassData.add("  - " + Modifier.toString(field.getModifiers()) + " " + /*field.getType().getSimpleName()*/ fieldName + " " + field.getName());
+                String typeName = field.getGenericType().getTypeName();
+                String fieldName = typeName.substring(typeName.lastIndexOf('.') + 1);
+            
+                out.fields.add(new MemberModel(field.getModifiers(), names.intern(/*field.getType().getSimpleName()*/ fieldName), field.getName(), null));
             }
         }
 
-
-
-        Constructor<?>[] cset1 = cls.getDeclaredConstructors();
-        //Constructor<?>[] cset2 = cls.getConstructors();
+        if ((sections & ClassModel.CONSTRUCTORS) != 0)
+        {
+            Constructor<?>[] cset1 = cls.getDeclaredConstructors();
+            declarationOrder(cset1, order);
         
-        ArrayList<Constructor<?>> allConstructors = new ArrayList<>();
+            Set<Constructor<?>> allConstructors = new LinkedHashSet<>();
         
-        for (Constructor<?> c : cset1) 
-        {
-            if (!allConstructors.contains(c)) allConstructors.add(c);
-        }
-        /* 
-        for (Constructor<?> c : cset2) 
-        {
-            if (!allConstructors.contains(c)) allConstructors.add(c);
-        }*/
+            for (Constructor<?> c : cset1) 
+            {
+                allConstructors.add(c);
+            }
+            if (inherited) 
+            {
+                for (Constructor<?> c : cls.getConstructors()) 
+                {
+                    allConstructors.add(c);
+                }
+            }
         
-        if (allConstructors.size() > 0) 
-        {
-            ClassData.add("Constructors:");
+            String simpleName = simpleName(cls);
             for (Constructor<?> constructor : allConstructors) 
             {
-                String cnstStr="";
-                cnstStr += "  - " + Modifier.toString(constructor.getModifiers()) + " " + cls.getSimpleName() + "(";
-                Class<?>[] params = constructor.getParameterTypes();
-                for (int i = 0; i < params.length; i++) 
+                out.constructors.add(new MemberModel(constructor.getModifiers(), null, simpleName, simpleNames(constructor.getParameterTypes())));
+            }
+        }
+
+        if ((sections & ClassModel.METHODS) != 0)
+        {
+            Method[] set1 = cls.getDeclaredMethods();
+            declarationOrder(set1, order);
+
+            Set<Method> allMethods = new LinkedHashSet<>();
+
+            for(Method m : set1)
+            {
+               allMethods.add(m);
+            }
+            if (inherited) 
+            {
+                Method[] inheritedMethods = cls.getMethods();
+                Arrays.sort(inheritedMethods, Comparator.comparing(JarInfoExtractor::inheritedKey));
+                for(Method m : inheritedMethods)
                 {
-                    cnstStr+=(params[i].getSimpleName());
-                    if (i < params.length - 1) cnstStr+=(", ");
+                    allMethods.add(m);
                 }
-                cnstStr+=(")");
+            }
 
-                ClassData.add(cnstStr);
+            for (Method method : allMethods) 
+            {
+                out.methods.add(new MemberModel(method.getModifiers(), simpleName(method.getReturnType()), method.getName(), simpleNames(method.getParameterTypes())));
             }
         }
+    }
 
-        Method[] set1 = cls.getDeclaredMethods();
-        //Method[] set2 = cls.getMethods();
+    /**
+     * Counts declared constructors or methods from the class file, which
+     * lists the same ones reflection does. Fields, which take in public
+     * inherited ones, and --inherited members are left to loading.
+     */
+    private int countMembers(JarArchive.Entry entry, int section)
+    {
+        if (section == ClassModel.FIELDS || inherited) return -1;
 
-        ArrayList<Method> allMethods = new ArrayList<>();
+        Map<String, Integer> order = methodOrder(entry);
+        if (order == null) return -1;
 
-        for(Method m : set1)
+        int found = 0;
+        for (String key : order.keySet()) 
         {
-           if(!allMethods.contains(m)) allMethods.add(m);
+            if (key.startsWith("<clinit>")) continue;
+            if (key.startsWith("<init>") == (section == ClassModel.CONSTRUCTORS)) found++;
         }
-        /* 
-        for(Method m : set2)
+        return found;
+    }
+
+    /** A class file has no stored CRC, so this works out the stamp a jar would give it. */
+    private static long fileStamp(ByteBuffer bytes)
+    {
+        CRC32 crc = new CRC32();
+        crc.update(bytes.duplicate());
+        return (long) bytes.remaining() << 32 | crc.getValue();
+    }
+
+    /** As fileStamp(bytes) for the reflective path, which leaves reading the bytes to its class loader; 0 if they cannot be read. */
+    private static long fileStamp(JarArchive.Entry entry)
+    {
+        try 
         {
-            if(!allMethods.contains(m)) allMethods.add(m);
-        }*/
+            ByteBuffer bytes = entry.archive.read(entry);
+            long stamp = fileStamp(bytes);
+            entry.archive.release(bytes);
+            return stamp;
 
-        if (allMethods.size() > 0) 
+        } catch (IOException e) 
         {
-           
-            ClassData.add("Methods:");
-            for (Method method : allMethods) 
-            {
-                String methStr = "";
-                methStr+=("  - " + Modifier.toString(method.getModifiers()) + " " + method.getReturnType().getSimpleName() + " " + method.getName() + "(");
-                Class<?>[] params = method.getParameterTypes();
-                for (int i = 0; i < params.length; i++) 
-                {
-                    methStr+=(params[i].getSimpleName());
-                    if (i < params.length - 1) methStr+=(", ");
-                }
-                methStr+=(")");
+            return 0;
+        }
+    }
 
-                ClassData.add(methStr);
-            }
+    /** Where each method of the entry's class file sits in it, or null if the file cannot be read. */
+    private Map<String, Integer> methodOrder(JarArchive.Entry entry)
+    {
+        try 
+        {
+            ByteBuffer bytes = entry.archive.read(entry);
+            Map<String, Integer> order = new ClassFileReader(bytes, names).methodOrder();
+            entry.archive.release(bytes);
+            return order;
+
+        } catch (Exception e) 
+        {
+            // the members keep the order HotSpot gave them
+            return null;
         }
-        ClassData.add("----------------------------------------------------\n");
+    }
+
+    /**
+     * HotSpot lists a class's methods in the order their names landed in
+     * its symbol table, which depends on whatever else was loading at the
+     * time, so with --parallel, or just a busy JIT, it changes from run to
+     * run. This puts them back into class-file order, the order the
+     * bytecode path reports.
+     */
+    private static <T extends Executable> void declarationOrder(T[] members, Map<String, Integer> order)
+    {
+        if (order == null || members.length < 2) return;
+
+        T[] slots = Arrays.copyOf(members, order.size() + members.length);
+        Arrays.fill(slots, null);
+        int extra = order.size();
+        for (T member : members) 
+        {
+            Integer at = order.get(methodKey(member));
+            slots[at != null ? at : extra++] = member;
+        }
+
+        int n = 0;
+        for (T member : slots) 
+        {
+            if (member != null) members[n++] = member;
+        }
+    }
+
+    /** The name and descriptor the class file holds for member. */
+    private static String methodKey(Executable member)
+    {
+        boolean constructor = member instanceof Constructor;
+        Class<?> returnType = constructor ? void.class : ((Method) member).getReturnType();
+        return (constructor ? "<init>" : member.getName())
+               + MethodType.methodType(returnType, member.getParameterTypes()).toMethodDescriptorString();
+    }
+
+    /** Inherited methods come from other class files, so they are simply sorted by where they are declared. */
+    private static String inheritedKey(Method method)
+    {
+        return method.getDeclaringClass().getName() + '.' + methodKey(method);
+    }
+
+    private String[] simpleNames(Class<?>[] types)
+    {
+        if (types.length == 0) return ClassModel.NO_NAMES;
+
+        String[] simple = new String[types.length];
+        for (int i = 0; i < types.length; i++) 
+        {
+            simple[i] = simpleName(types[i]);
+        }
+        return simple;
+    }
+
+    private String simpleName(Class<?> type)
+    {
+        String simple = simpleNameCache.get(type);
+        if (simple == null)
+        {
+            simple = names.intern(type.getSimpleName());
+            simpleNameCache.put(type, simple);
+        }
+        return simple;
     }
 
     
@@ -342,24 +815,73 @@ public class JarClassDiagramBuilder
 
     public static void main(String[] args) 
     {
-        if (args.length != 1) 
+        ToolOptions options = ToolOptions.parse(args);
+
+        if (options == null || options.paths.isEmpty()) 
         {
-            System.out.println("Args: /the/path/idk.jar");
+            System.out.println(ToolOptions.USAGE);
             return;
         }
 
-        String jarPath = args[0];
-        File jarFile = new File(jarPath);
+        if (options.jmx) 
+        {
+            ToolMetrics.registerMBean();
+        }
+
+        run(options);
 
-        if (!jarFile.exists()) 
+        if (options.metricsFile != null) 
         {
-            System.out.println("Invalid JAR file path.");
-            return;
+            ToolMetrics.INSTANCE.writeJson(options.metricsFile);
         }
+    }
+
+    static void run(ToolOptions options) 
+    {
+        List<File> classpath = options.classpath();
+        if (classpath == null) return;
+
+        ExtractionCache cache = options.openCache();
+
+        try (JarInfoExtractor extractor = new JarInfoExtractor(classpath, options.bytecode)) 
+        {
+            extractor.useCache(cache);
+            extractor.includeInherited(options.inherited);
+            ToolMetrics.Timer extractTimer = ToolMetrics.INSTANCE.time(ToolMetrics.EXTRACT);
+            try 
+            {
+                extractor.extractInfo(options.parallel);
+
+            } finally
+            {
+                extractTimer.stop();
+            }
+
+            ToolMetrics.Timer formatTimer = ToolMetrics.INSTANCE.time(ToolMetrics.FORMAT);
+            try 
+            {
+                if (options.outputFile == null) 
+                {
+                    extractor.printExtracted();
+                }
+                else 
+                {
+                    try (ChannelLineWriter out = ChannelLineWriter.toFile(options.outputFile)) 
+                    {
+                        extractor.printExtracted(out);
+                    }
+                }
+
+            } finally
+            {
+                formatTimer.stop();
+            }
 
-        JarInfoExtractor extractor = new JarInfoExtractor(jarFile);
+        } catch (IOException e) 
+        {
+            System.out.println("Could not write classes: " + e.getMessage());
+        }
 
-        extractor.extractInfo();
-        extractor.printExtracted();
+        ToolOptions.printCacheStats(cache);
     }   
 }
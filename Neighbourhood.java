@@ -0,0 +1,136 @@
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Cuts a diagram down to the classes within a number of hops of some root
+ * classes. The relations of every class go into one RelationGraph, and a
+ * breadth-first walk over its adjacency arrays picks the classes, so the
+ * walk and the drawing only touch the part of the graph they return.
+ *
+ * Building the graph is not bounded that way. A field anywhere in the jar
+ * may point into the neighbourhood, so the constructor reads the fields
+ * of every class and costs one pass over the jar; with deferred members
+ * that pass reads the field sections and nothing else.
+ *
+ * Relations are followed in both directions and are taken from the
+ * classes as extracted, so field associations count even when the
+ * diagram hides fields. Only classes in the diagram are walked through;
+ * other types, such as String or classes the preprocessor ignores, end a
+ * path but their edges are still drawn.
+ */
+class Neighbourhood
+{
+    private final RelationGraph graph = new RelationGraph();
+    private final List<ClassModel> classes = new ArrayList<>();
+    private int[] classOfNode = new int[0];
+    private int[] depthOfNode = new int[0];
+
+    Neighbourhood(List<ClassModel> extracted, DiagramPreProcessor preProc)
+    {
+        for (ClassModel cls : extracted)
+        {
+            ClassModel processed = preProc.process(cls);
+            if (processed == null) continue;
+
+            ClassRelations relations = new ClassRelations(cls);
+            relations.addTo(graph);
+
+            int node = graph.find(relations.name);
+            if (node >= classOfNode.length)
+            {
+                int size = Math.max(node + 1, classOfNode.length * 2);
+                int old = classOfNode.length;
+                classOfNode = Arrays.copyOf(classOfNode, size);
+                Arrays.fill(classOfNode, old, size, -1);
+            }
+            if (classOfNode[node] < 0)
+            {
+                classOfNode[node] = classes.size();
+            }
+            classes.add(processed);
+        }
+    }
+
+    /**
+     * Selects the classes at most depth hops from any of the roots, given
+     * by simple or full name. Returns the number of classes selected;
+     * roots that name no class in the diagram are reported and skipped.
+     */
+    int expand(List<String> roots, int depth)
+    {
+        depthOfNode = new int[graph.nodeCount()];
+        Arrays.fill(depthOfNode, -1);
+
+        int[] queue = new int[16];
+        int head = 0;
+        int tail = 0;
+
+        for (String root : roots)
+        {
+            int node = graph.find(DiagramText.simpleName(root));
+            if (!isClass(node))
+            {
+                // stderr, so the message stays out of a diagram streamed to stdout
+                System.err.println("Class not found in diagram: " + root);
+                continue;
+            }
+            if (depthOfNode[node] < 0)
+            {
+                depthOfNode[node] = 0;
+                if (tail == queue.length) queue = Arrays.copyOf(queue, tail * 2);
+                queue[tail++] = node;
+            }
+        }
+
+        int selected = tail;
+        while (head < tail)
+        {
+            int node = queue[head++];
+            int next = depthOfNode[node] + 1;
+            if (next > depth) continue;
+
+            int out = graph.outDegree(node);
+            int in = graph.inDegree(node);
+            for (int i = 0; i < out + in; i++)
+            {
+                int edge = i < out ? graph.outEdge(node, i) : graph.inEdge(node, i - out);
+                int other = i < out ? graph.target(edge) : graph.source(edge);
+                if (depthOfNode[other] >= 0 || !isClass(other)) continue;
+
+                depthOfNode[other] = next;
+                if (tail == queue.length) queue = Arrays.copyOf(queue, tail * 2);
+                queue[tail++] = other;
+                selected++;
+            }
+        }
+        return selected;
+    }
+
+    /** Adds the selected classes in their original order, with relations to unselected classes left out. */
+    void write(DiagramWriter writer) throws IOException
+    {
+        for (ClassModel cls : classes)
+        {
+            ClassRelations relations = new ClassRelations(cls);
+            if (!isSelected(graph.find(relations.name))) continue;
+
+            writer.add(cls, relations.within(name ->
+            {
+                int node = graph.find(name);
+                return !isClass(node) || isSelected(node);
+            }));
+        }
+    }
+
+    private boolean isClass(int node)
+    {
+        return node >= 0 && node < classOfNode.length && classOfNode[node] >= 0;
+    }
+
+    private boolean isSelected(int node)
+    {
+        return node >= 0 && node < depthOfNode.length && depthOfNode[node] >= 0;
+    }
+}
@@ -0,0 +1,267 @@
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The relations of a diagram as a graph over integer class ids. Edges are
+ * kept in parallel primitive arrays in the order they were first added,
+ * and an edge already present for the same (source, target, kind) is
+ * merged into the existing one, so each relation is drawn once however
+ * many fields produce it. Adjacency lists are built on demand.
+ *
+ * Nodes are keyed by the simple name the diagrams draw; the full name is
+ * kept too when a caller knows it.
+ */
+class RelationGraph
+{
+    static final int EXTENDS = 0;
+    static final int IMPLEMENTS = 1;
+    static final int ASSOCIATION = 2;
+
+    private final Map<String, Integer> ids = new HashMap<>();
+    private String[] names = new String[64];
+    private String[] fullNames = new String[64];
+    private int nodeCount;
+
+    private int[] sources = new int[64];
+    private int[] targets = new int[64];
+    private byte[] kinds = new byte[64];
+    private int[] counts = new int[64];
+    private boolean[] many = new boolean[64];
+    private int edgeCount;
+
+    // open addressing from packed (source, target, kind) to edge index + 1
+    private long[] keys = new long[128];
+    private int[] slots = new int[128];
+
+    private int[] outStart;
+    private int[] outEdges;
+    private int[] inStart;
+    private int[] inEdges;
+
+    int nodeCount()
+    {
+        return nodeCount;
+    }
+
+    int edgeCount()
+    {
+        return edgeCount;
+    }
+
+    /** Returns the id for name, adding a node the first time it is seen. */
+    int node(String name)
+    {
+        Integer id = ids.get(name);
+        if (id != null) return id;
+
+        if (nodeCount == names.length)
+        {
+            names = Arrays.copyOf(names, nodeCount * 2);
+            fullNames = Arrays.copyOf(fullNames, nodeCount * 2);
+        }
+        names[nodeCount] = name;
+        ids.put(name, nodeCount);
+        outStart = null;
+        return nodeCount++;
+    }
+
+    /** As node(name), also recording fullName if none was known yet. */
+    int node(String name, String fullName)
+    {
+        int id = node(name);
+        if (fullNames[id] == null) fullNames[id] = fullName;
+        return id;
+    }
+
+    /** Returns the id of name, or -1 if no node has it. */
+    int find(String name)
+    {
+        Integer id = ids.get(name);
+        return id != null ? id : -1;
+    }
+
+    String name(int node)
+    {
+        return names[node];
+    }
+
+    /** The full name if one was given, otherwise the simple name. */
+    String fullName(int node)
+    {
+        return fullNames[node] != null ? fullNames[node] : names[node];
+    }
+
+    /**
+     * Adds an edge, or counts it again if the same one is already there.
+     * toMany marks an association through a collection or array field.
+     * Returns the edge index.
+     */
+    int addEdge(int source, int target, int kind, boolean toMany)
+    {
+        long key = ((long) source << 33) | ((long) target << 2) | kind;
+        int mask = keys.length - 1;
+        int slot = hash(key) & mask;
+
+        while (slots[slot] != 0)
+        {
+            if (keys[slot] == key)
+            {
+                int edge = slots[slot] - 1;
+                counts[edge]++;
+                many[edge] |= toMany;
+                return edge;
+            }
+            slot = (slot + 1) & mask;
+        }
+
+        if (edgeCount == sources.length)
+        {
+            int size = edgeCount * 2;
+            sources = Arrays.copyOf(sources, size);
+            targets = Arrays.copyOf(targets, size);
+            kinds = Arrays.copyOf(kinds, size);
+            counts = Arrays.copyOf(counts, size);
+            many = Arrays.copyOf(many, size);
+        }
+        int edge = edgeCount++;
+        sources[edge] = source;
+        targets[edge] = target;
+        kinds[edge] = (byte) kind;
+        counts[edge] = 1;
+        many[edge] = toMany;
+
+        keys[slot] = key;
+        slots[slot] = edge + 1;
+        if (edgeCount * 2 > keys.length) rehash();
+
+        outStart = null;
+        return edge;
+    }
+
+    int source(int edge)
+    {
+        return sources[edge];
+    }
+
+    int target(int edge)
+    {
+        return targets[edge];
+    }
+
+    int kind(int edge)
+    {
+        return kinds[edge];
+    }
+
+    /** How many times the edge was added, e.g. the number of fields of that type. */
+    int count(int edge)
+    {
+        return counts[edge];
+    }
+
+    boolean toMany(int edge)
+    {
+        return many[edge];
+    }
+
+    /**
+     * The multiplicity drawn at the target end of an association: "*"
+     * through a collection, the field count when there are several plain
+     * fields of the type, otherwise null.
+     */
+    String multiplicity(int edge)
+    {
+        if (kinds[edge] != ASSOCIATION) return null;
+        if (many[edge]) return "*";
+        return counts[edge] > 1 ? String.valueOf(counts[edge]) : null;
+    }
+
+    int outDegree(int node)
+    {
+        index();
+        return outStart[node + 1] - outStart[node];
+    }
+
+    /** The i-th edge leaving node. */
+    int outEdge(int node, int i)
+    {
+        index();
+        return outEdges[outStart[node] + i];
+    }
+
+    int inDegree(int node)
+    {
+        index();
+        return inStart[node + 1] - inStart[node];
+    }
+
+    /** The i-th edge entering node. */
+    int inEdge(int node, int i)
+    {
+        index();
+        return inEdges[inStart[node] + i];
+    }
+
+    /** Builds the compressed adjacency arrays if edges or nodes were added since. */
+    private void index()
+    {
+        if (outStart != null) return;
+
+        int[] outs = new int[nodeCount + 1];
+        int[] ins = new int[nodeCount + 1];
+        for (int e = 0; e < edgeCount; e++)
+        {
+            outs[sources[e] + 1]++;
+            ins[targets[e] + 1]++;
+        }
+        for (int n = 0; n < nodeCount; n++)
+        {
+            outs[n + 1] += outs[n];
+            ins[n + 1] += ins[n];
+        }
+
+        int[] outList = new int[edgeCount];
+        int[] inList = new int[edgeCount];
+        int[] outFill = Arrays.copyOf(outs, nodeCount);
+        int[] inFill = Arrays.copyOf(ins, nodeCount);
+        for (int e = 0; e < edgeCount; e++)
+        {
+            outList[outFill[sources[e]]++] = e;
+            inList[inFill[targets[e]]++] = e;
+        }
+
+        inStart = ins;
+        inEdges = inList;
+        outEdges = outList;
+        outStart = outs;
+    }
+
+    private void rehash()
+    {
+        long[] oldKeys = keys;
+        int[] oldSlots = slots;
+        keys = new long[oldKeys.length * 2];
+        slots = new int[oldSlots.length * 2];
+        int mask = keys.length - 1;
+
+        for (int i = 0; i < oldKeys.length; i++)
+        {
+            if (oldSlots[i] == 0) continue;
+
+            int slot = hash(oldKeys[i]) & mask;
+            while (slots[slot] != 0)
+            {
+                slot = (slot + 1) & mask;
+            }
+            keys[slot] = oldKeys[i];
+            slots[slot] = oldSlots[i];
+        }
+    }
+
+    private static int hash(long key)
+    {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+}
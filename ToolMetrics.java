@@ -0,0 +1,288 @@
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanOperationInfo;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.FlightRecorder;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Process-wide counters and stage timings for the extract, preprocess and
+ * format stages. The tools print them as JSON with --metrics, embedding
+ * code can read them over JMX once registerMBean() has been called, and
+ * each timed stage is also committed as a JFR event when a recording
+ * has it enabled.
+ *
+ * Counters only grow; reset() clears them between runs of an embedded
+ * tool. firstOutputMillis is the time from JVM start until the first
+ * bytes of a diagram or dump were written, startup included. Classes
+ * skipped, by filters, duplicates or module-info, are what was scanned
+ * but neither extracted nor failed. memberSectionsRead counts the field,
+ * constructor and method sections extracted, three per class at most,
+ * so it shows how much deferred member extraction saved.
+ */
+class ToolMetrics implements DynamicMBean
+{
+    static final int EXTRACT = 0;
+    static final int PREPROCESS = 1;
+    static final int FORMAT = 2;
+
+    private static final String[] STAGES = {"extract", "preprocess", "format"};
+
+    static final ToolMetrics INSTANCE = new ToolMetrics();
+
+    final LongAdder classesScanned = new LongAdder();
+    final LongAdder classesLoaded = new LongAdder();
+    final LongAdder classesFailed = new LongAdder();
+    final LongAdder bytesRead = new LongAdder();
+    final LongAdder memberSectionsRead = new LongAdder();
+    final LongAdder membersRendered = new LongAdder();
+    final LongAdder relationsEmitted = new LongAdder();
+
+    private final LongAdder[] stageNanos = {new LongAdder(), new LongAdder(), new LongAdder()};
+    private volatile ExtractionCache cache;
+    private volatile long firstOutputAt;
+
+    @Name("diagramtool.Stage")
+    @Label("Diagram Tool Stage")
+    @Category("Diagram Tool")
+    @Description("One timed run of an extract, preprocess or format stage")
+    static class StageEvent extends Event
+    {
+        @Label("Stage")
+        String stage;
+    }
+
+    /** Times a stage from creation to stop(), which callers make in a finally block. */
+    class Timer
+    {
+        private final int stage;
+        private final long start = System.nanoTime();
+        // registering the event class costs a short run most of its startup, so it
+        // is only loaded once a recording has started the flight recorder
+        private final StageEvent event = FlightRecorder.isInitialized() ? new StageEvent() : null;
+
+        Timer(int stage)
+        {
+            this.stage = stage;
+            if (event != null) event.begin();
+        }
+
+        void stop()
+        {
+            addNanos(stage, System.nanoTime() - start);
+            if (event == null) return;
+
+            event.end();
+            if (event.shouldCommit())
+            {
+                event.stage = STAGES[stage];
+                event.commit();
+            }
+        }
+    }
+
+    Timer time(int stage)
+    {
+        return new Timer(stage);
+    }
+
+    /** For stages run in many small pieces, such as per class while streaming. */
+    void addNanos(int stage, long nanos)
+    {
+        stageNanos[stage].add(nanos);
+    }
+
+    /** Notes the wall-clock time output first reaches stdout or a file; later calls change nothing. */
+    void firstOutput()
+    {
+        if (firstOutputAt == 0) firstOutputAt = System.currentTimeMillis();
+    }
+
+    /** Reports the cache's hits and misses alongside the counters. */
+    void watchCache(ExtractionCache cache)
+    {
+        this.cache = cache;
+    }
+
+    void reset()
+    {
+        classesScanned.reset();
+        classesLoaded.reset();
+        classesFailed.reset();
+        bytesRead.reset();
+        memberSectionsRead.reset();
+        membersRendered.reset();
+        relationsEmitted.reset();
+        for (LongAdder nanos : stageNanos)
+        {
+            nanos.reset();
+        }
+        cache = null;
+        firstOutputAt = 0;
+    }
+
+    /** Every value by name, in a fixed order. */
+    Map<String, Long> snapshot()
+    {
+        Map<String, Long> values = new LinkedHashMap<>();
+        for (int i = 0; i < STAGES.length; i++)
+        {
+            values.put(STAGES[i] + "Millis", stageNanos[i].sum() / 1_000_000);
+        }
+
+        long scanned = classesScanned.sum();
+        long loaded = classesLoaded.sum();
+        long failed = classesFailed.sum();
+        values.put("classesScanned", scanned);
+        values.put("classesLoaded", loaded);
+        values.put("classesSkipped", Math.max(0, scanned - loaded - failed));
+        values.put("classesFailed", failed);
+        values.put("bytesRead", bytesRead.sum());
+        values.put("memberSectionsRead", memberSectionsRead.sum());
+        values.put("membersRendered", membersRendered.sum());
+        values.put("relationsEmitted", relationsEmitted.sum());
+
+        ExtractionCache watched = cache;
+        values.put("cacheHits", watched != null ? watched.hits() : 0);
+        values.put("cacheMisses", watched != null ? watched.misses() : 0);
+
+        // from JVM start, so startup and class loading count; -1 until something is written
+        long first = firstOutputAt;
+        values.put("firstOutputMillis", first == 0 ? -1 : first - ManagementFactory.getRuntimeMXBean().getStartTime());
+        return values;
+    }
+
+    String toJson()
+    {
+        StringBuilder sb = new StringBuilder("{");
+        for (Map.Entry<String, Long> value : snapshot().entrySet())
+        {
+            if (sb.length() > 1) sb.append(',');
+            sb.append("\n  \"").append(value.getKey()).append("\": ").append(value.getValue());
+        }
+        return sb.append("\n}").toString();
+    }
+
+    /** Writes the JSON summary to file, or to stderr if file is "-". */
+    void writeJson(String file)
+    {
+        if (file.equals("-"))
+        {
+            System.err.println(toJson());
+            return;
+        }
+
+        // not through a ChannelLineWriter, which would count this as the first output
+        try
+        {
+            Files.writeString(new File(file).toPath(), toJson() + System.lineSeparator());
+
+        } catch (IOException e)
+        {
+            System.out.println("Could not write metrics: " + file);
+        }
+    }
+
+    /** Registers the counters as diagramtool:type=Metrics with the platform MBean server. */
+    static void registerMBean()
+    {
+        try
+        {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName("diagramtool:type=Metrics");
+            if (!server.isRegistered(name))
+            {
+                server.registerMBean(INSTANCE, name);
+            }
+
+        } catch (JMException e)
+        {
+            System.out.println("Could not register metrics MBean: " + e.getMessage());
+        }
+    }
+
+    @Override
+    public Object getAttribute(String attribute) throws AttributeNotFoundException
+    {
+        Long value = snapshot().get(attribute);
+        if (value == null)
+        {
+            throw new AttributeNotFoundException(attribute);
+        }
+        return value;
+    }
+
+    @Override
+    public void setAttribute(Attribute attribute) throws AttributeNotFoundException
+    {
+        throw new AttributeNotFoundException(attribute.getName() + " is read-only");
+    }
+
+    @Override
+    public AttributeList getAttributes(String[] attributes)
+    {
+        Map<String, Long> values = snapshot();
+        AttributeList list = new AttributeList();
+        for (String attribute : attributes)
+        {
+            if (values.containsKey(attribute))
+            {
+                list.add(new Attribute(attribute, values.get(attribute)));
+            }
+        }
+        return list;
+    }
+
+    @Override
+    public AttributeList setAttributes(AttributeList attributes)
+    {
+        return new AttributeList();
+    }
+
+    @Override
+    public Object invoke(String actionName, Object[] params, String[] signature) throws ReflectionException
+    {
+        if (actionName.equals("reset") && (params == null || params.length == 0))
+        {
+            reset();
+            return null;
+        }
+        throw new ReflectionException(new NoSuchMethodException(actionName));
+    }
+
+    @Override
+    public MBeanInfo getMBeanInfo()
+    {
+        Map<String, Long> values = snapshot();
+        MBeanAttributeInfo[] attributes = new MBeanAttributeInfo[values.size()];
+        int i = 0;
+        for (String name : values.keySet())
+        {
+            attributes[i++] = new MBeanAttributeInfo(name, "long", name, true, false, false);
+        }
+        MBeanOperationInfo reset = new MBeanOperationInfo("reset", "Clears all counters",
+                                                          null, "void", MBeanOperationInfo.ACTION);
+        return new MBeanInfo(ToolMetrics.class.getName(), "Diagram tool stage metrics",
+                             attributes, null, new MBeanOperationInfo[] {reset}, null);
+    }
+}
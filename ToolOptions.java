@@ -0,0 +1,213 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * Command line switches shared by DiagramClassTool and
+ * JarClassDiagramBuilder.
+ */
+class ToolOptions
+{
+    static final String USAGE = "Args: [--bytecode] [--inherited] [--parallel] [--stream] [--cache dir] [--cache-max-mb n] [--exclude entry] [--exclude-file file] [--format plantuml,yuml] [--output-dir dir] [--output file] [--focus Class,...] [--depth n] [--partition] [--partition-max n] [--metrics file|-] [--jmx] [--serve port] [--serve-models n] [--diff] [--max-nodes n] [--max-edges n] [--max-members n] /the/path/idk.jar [more jars, class dirs or path:lists]";
+
+    /** Set inside a GraalVM native image, which cannot load the target's classes to reflect on them. */
+    static final boolean NATIVE_IMAGE = System.getProperty("org.graalvm.nativeimage.imagecode") != null;
+
+    boolean bytecode = NATIVE_IMAGE;
+    boolean inherited;
+    boolean parallel;
+    boolean stream;
+    File cacheDir;
+    long cacheMaxBytes = 256L * 1024 * 1024;
+    List<String> excludes = new ArrayList<>();
+    File excludeFile;
+    List<String> formats = List.of("plantuml");
+    File outputDir;
+    File outputFile;
+    List<String> focus = new ArrayList<>();
+    int depth = 1;
+    boolean partition;
+    int partitionMax;
+    String metricsFile;
+    boolean jmx;
+    boolean diff;
+    int serve = -1;
+    int serveModels = 16;
+    int maxNodes;
+    int maxEdges;
+    // counts drawn members, so on the command line, which hides fields and methods, only constructors
+    int maxMembers;
+    List<String> paths = new ArrayList<>();
+
+    /** Returns null if the arguments are not understood. */
+    static ToolOptions parse(String[] args)
+    {
+        ToolOptions options = new ToolOptions();
+
+        for (int i = 0; i < args.length; i++)
+        {
+            String arg = args[i];
+            boolean hasValue = i + 1 < args.length;
+
+            if (arg.equals("--bytecode")) options.bytecode = true;
+            else if (arg.equals("--inherited")) options.inherited = true;
+            else if (arg.equals("--parallel")) options.parallel = true;
+            else if (arg.equals("--stream")) options.stream = true;
+            else if (arg.equals("--cache") && hasValue) options.cacheDir = new File(args[++i]);
+            else if (arg.equals("--exclude") && hasValue) options.excludes.add(args[++i]);
+            else if (arg.equals("--exclude-file") && hasValue) options.excludeFile = new File(args[++i]);
+            else if (arg.equals("--format") && hasValue)
+            {
+                // each format once, as two writers for one format would write the same file
+                Set<String> formats = new LinkedHashSet<>();
+                for (String format : args[++i].split(","))
+                {
+                    format = format.toLowerCase(Locale.ROOT);
+                    if (!format.equals("plantuml") && !format.equals("yuml")) return null;
+                    formats.add(format);
+                }
+                options.formats = List.copyOf(formats);
+            }
+            else if (arg.equals("--output-dir") && hasValue) options.outputDir = new File(args[++i]);
+            else if (arg.equals("--output") && hasValue) options.outputFile = new File(args[++i]);
+            else if (arg.equals("--partition")) options.partition = true;
+            else if (arg.equals("--metrics") && hasValue) options.metricsFile = args[++i];
+            else if (arg.equals("--jmx")) options.jmx = true;
+            else if (arg.equals("--diff")) options.diff = true;
+            else if (arg.equals("--focus") && hasValue) options.focus.addAll(List.of(args[++i].split(",")));
+            else if ((arg.equals("--cache-max-mb") || arg.equals("--depth") || arg.equals("--partition-max")
+                      || arg.equals("--serve") || arg.equals("--serve-models") || arg.equals("--max-nodes")
+                      || arg.equals("--max-edges") || arg.equals("--max-members")) && hasValue)
+            {
+                try
+                {
+                    long value = Long.parseLong(args[++i]);
+                    if (value < 0) return null;
+                    if (arg.equals("--depth")) options.depth = (int) Math.min(value, Integer.MAX_VALUE);
+                    else if (arg.equals("--serve")) options.serve = (int) Math.min(value, 65535);
+                    else if (arg.equals("--serve-models")) options.serveModels = (int) Math.max(1, Math.min(value, Integer.MAX_VALUE));
+                    else if (arg.equals("--max-nodes")) options.maxNodes = (int) Math.min(value, Integer.MAX_VALUE);
+                    else if (arg.equals("--max-edges")) options.maxEdges = (int) Math.min(value, Integer.MAX_VALUE);
+                    else if (arg.equals("--max-members")) options.maxMembers = (int) Math.min(value, Integer.MAX_VALUE);
+                    else if (arg.equals("--partition-max"))
+                    {
+                        options.partition = true;
+                        options.partitionMax = (int) Math.min(value, Integer.MAX_VALUE);
+                    }
+                    else options.cacheMaxBytes = value * 1024 * 1024;
+
+                } catch (NumberFormatException e)
+                {
+                    return null;
+                }
+            }
+            else if (arg.startsWith("--")) return null;
+            else options.paths.add(arg);
+        }
+
+        // one file can only hold one diagram
+        if (options.outputFile != null && (options.formats.size() > 1 || options.outputDir != null || options.partition)) return null;
+        if (options.partition && !options.focus.isEmpty()) return null;
+        // budgets apply to one whole diagram
+        if (options.simplify() && (options.partition || !options.focus.isEmpty() || options.diff)) return null;
+        // the two paths are the old and the new version, each a jar, class dir or path:list
+        if (options.diff && (options.paths.size() != 2 || options.stream || options.partition || !options.focus.isEmpty())) return null;
+
+        return options;
+    }
+
+    /** Whether any of --max-nodes, --max-edges or --max-members was given. */
+    boolean simplify()
+    {
+        return maxNodes > 0 || maxEdges > 0 || maxMembers > 0;
+    }
+
+    /**
+     * The jars and class directories to read, in the order given, with
+     * any path-separator lists split up. Returns null, after saying so,
+     * if one of them does not exist.
+     */
+    List<File> classpath()
+    {
+        return classpath(paths.toArray(new String[0]));
+    }
+
+    /** As classpath(), for only the given path arguments, e.g. one side of a --diff. */
+    List<File> classpath(String... args)
+    {
+        List<File> files = new ArrayList<>();
+        for (String path : args)
+        {
+            for (String part : path.split(File.pathSeparator))
+            {
+                if (part.isEmpty()) continue;
+
+                File file = new File(part);
+                if (!file.exists())
+                {
+                    System.out.println("Invalid JAR file path.");
+                    return null;
+                }
+                files.add(file);
+            }
+        }
+        return files;
+    }
+
+    /** Returns the extraction cache asked for with --cache, or null. */
+    ExtractionCache openCache()
+    {
+        if (cacheDir == null) return null;
+
+        try
+        {
+            ExtractionCache cache = new ExtractionCache(cacheDir, cacheMaxBytes);
+            ToolMetrics.INSTANCE.watchCache(cache);
+            return cache;
+
+        } catch (IOException e)
+        {
+            System.out.println("Could not open cache: " + cacheDir);
+            return null;
+        }
+    }
+
+    /**
+     * The --exclude entries followed by the lines of --exclude-file, one
+     * entry per line, skipping blank lines and # comments. Returns null if
+     * the file cannot be read.
+     */
+    List<String> excludeEntries()
+    {
+        List<String> entries = new ArrayList<>(excludes);
+        if (excludeFile == null) return entries;
+
+        try
+        {
+            for (String line : Files.readAllLines(excludeFile.toPath(), StandardCharsets.UTF_8))
+            {
+                line = line.trim();
+                if (!line.isEmpty() && !line.startsWith("#")) entries.add(line);
+            }
+            return entries;
+
+        } catch (IOException e)
+        {
+            System.out.println("Could not read exclude file: " + excludeFile);
+            return null;
+        }
+    }
+
+    static void printCacheStats(ExtractionCache cache)
+    {
+        if (cache == null) return;
+
+        System.err.println("Cache: " + cache.hits() + " hits, " + cache.misses() + " misses");
+    }
+}
@@ -0,0 +1,61 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import bench.DiagramStages;
+
+/**
+ * Default-package side of bench.DiagramStages, calling the tool's
+ * extractor, preprocessor and formatters directly.
+ */
+public class BenchStages implements DiagramStages
+{
+    private final DiagramPreProcessor preProc;
+    private final DiagramFormatter plantUml = new PlantUMLFormatter();
+    private final DiagramFormatter yuml = new YumlFormatter();
+
+    public BenchStages()
+    {
+        List<String> ignoreClass = new ArrayList<>();
+        ignoreClass.add("TextDisplay");
+        ignoreClass.add("TemperatureSensor");
+        preProc = new DiagramPreProcessor(true, true, false, ignoreClass);
+    }
+
+    @Override
+    public Object extract(File jar, boolean bytecode)
+    {
+        try (JarInfoExtractor extractor = new JarInfoExtractor(jar, bytecode))
+        {
+            extractor.extractInfo();
+            return extractor.getClasses();
+
+        } catch (IOException e)
+        {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public Object preprocess(Object classes)
+    {
+        return preProc.process((List<ClassModel>) classes);
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public int formatPlantUml(Object classes)
+    {
+        return plantUml.formatClasses((List<ClassModel>) classes).size();
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public int formatYuml(Object classes)
+    {
+        return yuml.formatClasses((List<ClassModel>) classes).size();
+    }
+}
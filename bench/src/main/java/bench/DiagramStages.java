@@ -0,0 +1,40 @@
+package bench;
+
+import java.io.File;
+
+/**
+ * The pipeline stages the benchmarks time. The tool's classes live in the
+ * default package, which code in a named package cannot import, and JMH
+ * only generates benchmarks for named packages. So the stages are reached
+ * through this interface, implemented by BenchStages in the default
+ * package and looked up by name.
+ *
+ * The values passed between stages are the tool's own List<ClassModel>,
+ * typed as Object here since ClassModel is not visible from this package.
+ */
+public interface DiagramStages
+{
+    /** Extracts every class in the jar, reflectively or from bytecode. */
+    Object extract(File jar, boolean bytecode);
+
+    /** Applies the same filtering DiagramClassTool does. */
+    Object preprocess(Object classes);
+
+    /** Formats the classes as PlantUML, returning the line count. */
+    int formatPlantUml(Object classes);
+
+    /** Formats the classes as yUML, returning the line count. */
+    int formatYuml(Object classes);
+
+    static DiagramStages load()
+    {
+        try
+        {
+            return (DiagramStages) Class.forName("BenchStages").getDeclaredConstructor().newInstance();
+
+        } catch (ReflectiveOperationException e)
+        {
+            throw new IllegalStateException("BenchStages is missing from the benchmark jar", e);
+        }
+    }
+}
@@ -0,0 +1,106 @@
+package bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Times each pipeline stage on its own: extraction, preprocessing and the
+ * two formatters. Throughput and sampled latency (with percentiles) are
+ * both reported. Build and run from this directory with
+ *
+ *   mvn -B package
+ *   java -jar target/benchmarks.jar -prof gc
+ *
+ * -prof gc adds allocation rate and bytes per operation. The jar param
+ * takes a bundled jar, looked up in the directory named by the bench.jars
+ * system property (default ".."), or synthetic-NxM for a generated jar of
+ * N classes with M fields and M methods each, e.g.
+ *
+ *   java -jar target/benchmarks.jar -p jar=synthetic-5000x10 extract
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class StageBenchmarks
+{
+    @Param({"TempSensor.jar", "EventNotifier.jar", "synthetic-200x20", "synthetic-2000x20"})
+    public String jar;
+
+    @Param({"reflect", "bytecode"})
+    public String engine;
+
+    private DiagramStages stages;
+    private File jarFile;
+    private boolean bytecode;
+    private Object extracted;
+    private Object processed;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException
+    {
+        stages = DiagramStages.load();
+        bytecode = engine.equals("bytecode");
+        jarFile = resolve(jar);
+
+        extracted = stages.extract(jarFile, bytecode);
+        processed = stages.preprocess(extracted);
+    }
+
+    @Benchmark
+    public Object extract()
+    {
+        return stages.extract(jarFile, bytecode);
+    }
+
+    @Benchmark
+    public Object preprocess()
+    {
+        return stages.preprocess(extracted);
+    }
+
+    @Benchmark
+    public int formatPlantUml()
+    {
+        return stages.formatPlantUml(processed);
+    }
+
+    @Benchmark
+    public int formatYuml()
+    {
+        return stages.formatYuml(processed);
+    }
+
+    private static File resolve(String jar) throws IOException
+    {
+        if (jar.startsWith("synthetic-"))
+        {
+            String[] size = jar.substring("synthetic-".length()).split("x");
+            File dir = new File(System.getProperty("java.io.tmpdir"), "diagram-bench");
+            return SyntheticJar.get(dir, Integer.parseInt(size[0]), Integer.parseInt(size[1]));
+        }
+
+        File file = new File(System.getProperty("bench.jars", ".."), jar);
+        if (!file.isFile())
+        {
+            throw new IOException("Bundled jar not found: " + file);
+        }
+        return file;
+    }
+}
@@ -0,0 +1,140 @@
+package bench;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+import java.util.stream.Stream;
+
+import javax.tools.JavaCompiler;
+import javax.tools.ToolProvider;
+
+/**
+ * Builds a jar of generated classes so the stages can be timed on inputs
+ * much larger than the bundled jars. Each class gets the given number of
+ * fields and of methods, with supertypes, interfaces and field types
+ * pointing at other generated classes so the formatters emit relations.
+ */
+final class SyntheticJar
+{
+    private SyntheticJar()
+    {
+    }
+
+    /** Returns the jar for classes x members, generating it on first use. */
+    static File get(File dir, int classes, int members) throws IOException
+    {
+        File jar = new File(dir, "synthetic-" + classes + "x" + members + ".jar");
+        if (jar.isFile()) return jar;
+
+        Path work = Files.createTempDirectory("synthetic");
+        try
+        {
+            Path src = work.resolve("src");
+            Path out = work.resolve("classes");
+            Files.createDirectories(src.resolve("synth"));
+            Files.createDirectories(out);
+
+            List<String> files = new ArrayList<>();
+            files.add(write(src, "Node", "package synth;\n\npublic interface Node\n{\n    String id();\n}\n"));
+            for (int i = 0; i < classes; i++)
+            {
+                files.add(write(src, "C" + i, source(i, classes, members)));
+            }
+
+            JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+            if (compiler == null)
+            {
+                throw new IOException("Generating the synthetic jar needs a JDK");
+            }
+            List<String> args = new ArrayList<>(List.of("-nowarn", "-d", out.toString()));
+            args.addAll(files);
+            if (compiler.run(null, null, null, args.toArray(new String[0])) != 0)
+            {
+                throw new IOException("Could not compile the synthetic classes");
+            }
+
+            Files.createDirectories(dir.toPath());
+            File tmp = File.createTempFile("synthetic", ".tmp", dir);
+            try (JarOutputStream jarOut = new JarOutputStream(new FileOutputStream(tmp));
+                 Stream<Path> walk = Files.walk(out))
+            {
+                for (Path file : (Iterable<Path>) walk.filter(Files::isRegularFile).sorted()::iterator)
+                {
+                    jarOut.putNextEntry(new JarEntry(out.relativize(file).toString().replace(File.separatorChar, '/')));
+                    Files.copy(file, (OutputStream) jarOut);
+                    jarOut.closeEntry();
+                }
+            }
+            Files.move(tmp.toPath(), jar.toPath());
+            return jar;
+
+        } finally
+        {
+            try (Stream<Path> walk = Files.walk(work))
+            {
+                walk.sorted((a, b) -> b.compareTo(a)).forEach(path -> path.toFile().delete());
+            }
+        }
+    }
+
+    private static String write(Path src, String name, String text) throws IOException
+    {
+        Path file = src.resolve("synth").resolve(name + ".java");
+        Files.writeString(file, text);
+        return file.toString();
+    }
+
+    private static String source(int index, int classes, int members)
+    {
+        StringBuilder sb = new StringBuilder();
+        sb.append("package synth;\n\n");
+        sb.append("import java.util.List;\n\n");
+
+        // every fourth class starts a new inheritance chain
+        sb.append("public class C").append(index);
+        if (index % 4 != 0) sb.append(" extends C").append(index - 1);
+        sb.append(" implements Node\n{\n");
+
+        for (int m = 0; m < members; m++)
+        {
+            String other = "C" + ((index + m + 1) % classes);
+            switch (m % 4)
+            {
+                case 0: sb.append("    private int count").append(m).append(";\n"); break;
+                case 1: sb.append("    protected ").append(other).append(" ref").append(m).append(";\n"); break;
+                case 2: sb.append("    public List<").append(other).append("> refs").append(m).append(";\n"); break;
+                default: sb.append("    static final String NAME").append(m).append(" = \"").append(m).append("\";\n");
+            }
+        }
+
+        sb.append("\n    public C").append(index).append("()\n    {\n    }\n\n");
+        sb.append("    public String id()\n    {\n        return \"C").append(index).append("\";\n    }\n");
+
+        for (int m = 0; m < members; m++)
+        {
+            String other = "C" + ((index + m + 1) % classes);
+            switch (m % 3)
+            {
+                case 0:
+                    sb.append("\n    public int size").append(m).append("(int a, String b)\n    {\n        return a + b.length();\n    }\n");
+                    break;
+                case 1:
+                    sb.append("\n    protected ").append(other).append(" link").append(index).append('_').append(m).append("(List<").append(other)
+                      .append("> items)\n    {\n        return items.isEmpty() ? null : items.get(0);\n    }\n");
+                    break;
+                default:
+                    sb.append("\n    private static void touch").append(m).append("(Object[] values)\n    {\n    }\n");
+            }
+        }
+
+        sb.append("}\n");
+        return sb.toString();
+    }
+}